@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Measures how long something takes and how much it allocates on the calling thread, for the
+ * benchmarks alongside the tests. Results depend on the device, so they're logged (under "oab")
+ * rather than asserted on.
+ */
+public class Benchmark {
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * Averages over the measured runs
+     */
+    public static class Result {
+        public final long nanos;
+        public final long allocCount;
+        public final long allocBytes;
+
+        Result(long nanos, long allocCount, long allocBytes) {
+            this.nanos = nanos;
+            this.allocCount = allocCount;
+            this.allocBytes = allocBytes;
+        }
+
+        /**
+         * Log the result, per unit (e.g., per post) as well as per run
+         */
+        public void log(String name, int units, String unit) {
+            Log.i("oab", name + ": " + (nanos / 1000) + "us, " + allocCount + " allocations ("
+                    + allocBytes + "B) per run; " + (allocCount / units) + " allocations ("
+                    + (allocBytes / units) + "B) per " + unit);
+        }
+    }
+
+    private Benchmark() {}
+
+    /**
+     * Run task a few times to warm up, then measure the average of runs more
+     */
+    public static Result measure(int runs, Task task) throws Exception {
+        for (int i=0; i<3; i++) {
+            task.run();
+        }
+
+        long nanos = 0;
+        long allocCount = 0;
+        long allocBytes = 0;
+        Debug.startAllocCounting();
+        try {
+            for (int i=0; i<runs; i++) {
+                // Start each run with a clean heap, so collecting earlier runs' garbage isn't timed
+                System.gc();
+                Debug.resetThreadAllocCount();
+                Debug.resetThreadAllocSize();
+                long start = System.nanoTime();
+                task.run();
+                nanos += System.nanoTime() - start;
+                allocCount += Debug.getThreadAllocCount();
+                allocBytes += Debug.getThreadAllocSize();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return new Result(nanos / runs, allocCount / runs, allocBytes / runs);
+    }
+}
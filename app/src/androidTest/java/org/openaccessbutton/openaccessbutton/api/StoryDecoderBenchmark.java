@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.api;
+
+import android.test.InstrumentationTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openaccessbutton.openaccessbutton.Benchmark;
+import org.openaccessbutton.openaccessbutton.map.Item;
+import org.openaccessbutton.openaccessbutton.map.StoryStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares StoryDecoder with decoding the same /query page into an org.json tree first, as
+ * storyListRequest used to. The hits in assets/story_page.json are repeated (with new ids) to
+ * make up a full page of STORY_PAGE_SIZE. See the log for the results.
+ */
+public class StoryDecoderBenchmark extends InstrumentationTestCase {
+    private static final int RUNS = 10;
+
+    private byte[] mPage;
+    private int mHits;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        InputStream in = getInstrumentation().getContext().getAssets().open("story_page.json");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, n);
+        }
+        in.close();
+
+        JSONObject page = new JSONObject(bytes.toString("UTF-8"));
+        JSONObject hits = page.getJSONObject("hits");
+        JSONArray recorded = hits.getJSONArray("hits");
+        JSONArray full = new JSONArray();
+        for (int i=0; i<API.STORY_PAGE_SIZE; i++) {
+            JSONObject hit = new JSONObject(recorded.getJSONObject(i % recorded.length()).toString());
+            hit.put("_id", hit.getString("_id") + "-" + i);
+            full.put(hit);
+        }
+        hits.put("hits", full);
+        mPage = page.toString().getBytes("UTF-8");
+        mHits = full.length();
+    }
+
+    public void testStreamingDecoder() throws Exception {
+        Benchmark.measure(RUNS, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                List<Item> items = new ArrayList<Item>(API.STORY_PAGE_SIZE);
+                StoryDecoder.decode(new InputStreamReader(new ByteArrayInputStream(mPage), "UTF-8"),
+                        new StoryStore(), items);
+                assertFalse(items.isEmpty());
+            }
+        }).log("StoryDecoder", mHits, "hit");
+    }
+
+    public void testJsonTree() throws Exception {
+        Benchmark.measure(RUNS, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                List<Item> items = new ArrayList<Item>(API.STORY_PAGE_SIZE);
+                decodeWithJsonTree(mPage, new StoryStore(), items);
+                assertFalse(items.isEmpty());
+            }
+        }).log("org.json", mHits, "hit");
+    }
+
+    /**
+     * The old way: the whole body as a String, then a tree, then lookups by key
+     */
+    private static void decodeWithJsonTree(byte[] body, StoryStore store, List<Item> out)
+            throws Exception {
+        JSONObject result = new JSONObject(new String(body, "UTF-8"));
+        JSONArray hits = result.getJSONObject("hits").getJSONArray("hits");
+        for (int i=0; i<hits.length(); i++) {
+            JSONObject hit = hits.getJSONObject(i);
+            JSONObject fields = hit.getJSONObject("fields");
+            double lat = first(fields, "coords.lat").optDouble(0, Double.NaN);
+            double lng = first(fields, "coords.lng").optDouble(0, Double.NaN);
+            if (Double.isNaN(lat) || Double.isNaN(lng)) continue;
+            Item item = store.add(hit.getString("_id"), lat, lng,
+                    first(fields, "story").optString(0), first(fields, "doi").optString(0),
+                    first(fields, "user_profession").optString(0), first(fields, "url").optString(0),
+                    first(fields, "accessed").optString(0), first(fields, "user_name").optString(0),
+                    first(fields, "description").optString(0));
+            if (item != null) {
+                out.add(item);
+            }
+        }
+    }
+
+    /**
+     * Field as a one element array, whether it came as one or as a bare value
+     */
+    private static JSONArray first(JSONObject fields, String name) {
+        JSONArray array = fields.optJSONArray(name);
+        if (array != null) return array;
+        array = new JSONArray();
+        if (!fields.isNull(name)) {
+            array.put(fields.opt(name));
+        }
+        return array;
+    }
+}
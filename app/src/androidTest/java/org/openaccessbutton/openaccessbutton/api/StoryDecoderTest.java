@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.api;
+
+import android.test.InstrumentationTestCase;
+
+import org.openaccessbutton.openaccessbutton.map.Item;
+import org.openaccessbutton.openaccessbutton.map.StoryStore;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes a page of /query results (assets/story_page.json)
+ */
+public class StoryDecoderTest extends InstrumentationTestCase {
+    private static final String STORY_PAGE = "story_page.json";
+
+    private Reader open(String asset) throws Exception {
+        return new InputStreamReader(getInstrumentation().getContext().getAssets().open(asset), "UTF-8");
+    }
+
+    public void testDecodesPage() throws Exception {
+        StoryStore store = new StoryStore();
+        List<Item> stories = new ArrayList<Item>();
+        int total = StoryDecoder.decode(open(STORY_PAGE), store, stories);
+
+        assertEquals(1342, total);
+        // The hit without a location is skipped
+        assertEquals(3, stories.size());
+        assertEquals(3, store.size());
+
+        Item item = stories.get(0);
+        assertEquals("a41f9c2e0b5d4b6f", item.id());
+        // First in its place, so not moved
+        assertEquals(51.5, item.getPosition().latitude, 1e-9);
+        assertEquals(-0.1, item.getPosition().longitude, 1e-9);
+        assertEquals("Needed this for my dissertation", item.story());
+        assertEquals("10.1371/journal.pone.0012345", item.doi());
+        assertEquals("Student", item.userProfession());
+        assertEquals("2014-10-14T10:31:07.123Z", item.accessed());
+        assertEquals("jsmith", item.userName());
+        assertEquals("The Lancet, Volume 383", item.description());
+    }
+
+    public void testReadsBareValuesAndNulls() throws Exception {
+        StoryStore store = new StoryStore();
+        List<Item> stories = new ArrayList<Item>();
+        StoryDecoder.decode(open(STORY_PAGE), store, stories);
+
+        // Fields without arrays, a null and missing fields
+        Item item = stories.get(1);
+        assertEquals("b7730d1e9c2a4e01", item.id());
+        assertEquals("Same library, different paywall", item.story());
+        assertEquals("Researcher", item.userProfession());
+        assertEquals("", item.userName());
+        assertEquals("", item.doi());
+        // Same place as the first, so spread out from it
+        assertFalse(51.5 == item.getPosition().latitude && -0.1 == item.getPosition().longitude);
+    }
+
+    public void testSkipsStoriesAlreadyInStore() throws Exception {
+        StoryStore store = new StoryStore();
+        StoryDecoder.decode(open(STORY_PAGE), store, new ArrayList<Item>());
+
+        List<Item> again = new ArrayList<Item>();
+        int total = StoryDecoder.decode(open(STORY_PAGE), store, again);
+
+        assertEquals(1342, total);
+        assertTrue(again.isEmpty());
+        assertEquals(3, store.size());
+        assertEquals("2014-10-14T10:31:07.123Z", store.lastAccessed());
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.blog;
+
+import android.test.InstrumentationTestCase;
+import android.util.Xml;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.openaccessbutton.openaccessbutton.Benchmark;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Allocations per post for RssParser over the pages of the feed in assets, compared with the
+ * parser as it was before it was reworked to allocate less (BaselineParser). See the log for
+ * the results.
+ */
+public class RssParserBenchmark extends InstrumentationTestCase {
+    private static final String[] PAGES = {"blog_feed_page.xml", "blog_feed_page2.xml"};
+    private static final int RUNS = 20;
+
+    private final List<byte[]> mPages = new ArrayList<byte[]>();
+    private int mPosts;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (String page : PAGES) {
+            InputStream in = getInstrumentation().getContext().getAssets().open(page);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, n);
+            }
+            in.close();
+            mPages.add(bytes.toByteArray());
+            mPosts += new RssParser().parse(new ByteArrayInputStream(bytes.toByteArray())).size();
+        }
+    }
+
+    public void testRssParser() throws Exception {
+        Benchmark.measure(RUNS, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                for (byte[] page : mPages) {
+                    new RssParser().parse(new ByteArrayInputStream(page));
+                }
+            }
+        }).log("RssParser", mPosts, "post");
+    }
+
+    public void testRssParserSummaries() throws Exception {
+        Benchmark.measure(RUNS, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                for (byte[] page : mPages) {
+                    new RssParser(true).parse(new ByteArrayInputStream(page));
+                }
+            }
+        }).log("RssParser (summaries)", mPosts, "post");
+    }
+
+    public void testBaselineParser() throws Exception {
+        Benchmark.measure(RUNS, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                for (byte[] page : mPages) {
+                    BaselineParser.parse(new ByteArrayInputStream(page));
+                }
+            }
+        }).log("Baseline", mPosts, "post");
+    }
+
+    /**
+     * The parser as it was: a SimpleDateFormat per date, the trailer regexes compiled for every
+     * post, every text node unescaped and tags matched with a chain of equals()
+     */
+    private static class BaselineParser {
+        static List<Post> parse(InputStream in) throws Exception {
+            try {
+                XmlPullParser parser = Xml.newPullParser();
+                parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+                parser.setInput(in, null);
+                parser.nextTag();
+                parser.require(XmlPullParser.START_TAG, null, "rss");
+                while (parser.next() != XmlPullParser.END_TAG) {
+                    if (parser.getEventType() != XmlPullParser.START_TAG) continue;
+                    if (parser.getName().equals("channel")) {
+                        return readChannel(parser);
+                    }
+                    skip(parser);
+                }
+                return null;
+            } finally {
+                in.close();
+            }
+        }
+
+        private static List<Post> readChannel(XmlPullParser parser) throws Exception {
+            List<Post> posts = new ArrayList<Post>();
+            while (parser.next() != XmlPullParser.END_TAG) {
+                if (parser.getEventType() != XmlPullParser.START_TAG) continue;
+                if (parser.getName().equals("item")) {
+                    posts.add(readPost(parser));
+                } else {
+                    skip(parser);
+                }
+            }
+            return posts;
+        }
+
+        private static Post readPost(XmlPullParser parser) throws Exception {
+            String title = null;
+            String description = null;
+            Date date = null;
+            String creator = null;
+            String content = null;
+            String link = null;
+            while (parser.next() != XmlPullParser.END_TAG) {
+                if (parser.getEventType() != XmlPullParser.START_TAG) continue;
+                String name = parser.getName();
+                if (name.equals("title")) {
+                    title = readText(parser);
+                } else if (name.equals("description")) {
+                    description = readText(parser).replaceAll("(?m) \\[\u2026\\]<img.*/>$", "") + "...";
+                } else if (name.equals("pubDate")) {
+                    SimpleDateFormat dateParser = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss ZZZZZ", Locale.ENGLISH);
+                    try {
+                        date = dateParser.parse(readText(parser));
+                    } catch (Exception e) {
+                        date = null;
+                    }
+                } else if (name.equals("dc:creator")) {
+                    creator = readText(parser);
+                } else if (name.equals("content:encoded")) {
+                    content = readText(parser).replaceAll("<img.*/>$", "");
+                } else if (name.equals("link")) {
+                    link = readText(parser);
+                } else {
+                    skip(parser);
+                }
+            }
+            return new Post(title, description, date, creator, content, link);
+        }
+
+        private static void skip(XmlPullParser parser) throws Exception {
+            int depth = 1;
+            while (depth != 0) {
+                switch (parser.next()) {
+                    case XmlPullParser.END_TAG:
+                        depth--;
+                        break;
+                    case XmlPullParser.START_TAG:
+                        depth++;
+                        break;
+                }
+            }
+        }
+
+        private static String readText(XmlPullParser parser) throws Exception {
+            String result = "";
+            if (parser.next() == XmlPullParser.TEXT) {
+                result = parser.getText();
+                parser.nextTag();
+            }
+            return StringEscapeUtils.unescapeXml(result);
+        }
+    }
+}
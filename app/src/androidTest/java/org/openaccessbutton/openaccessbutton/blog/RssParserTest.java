@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.blog;
+
+import android.test.InstrumentationTestCase;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses a page of the blog's WordPress feed (assets/blog_feed_page.xml)
+ */
+public class RssParserTest extends InstrumentationTestCase {
+    private static final String FEED_PAGE = "blog_feed_page.xml";
+
+    private InputStream open(String asset) throws Exception {
+        return getInstrumentation().getContext().getAssets().open(asset);
+    }
+
+    public void testParsesEveryPost() throws Exception {
+        List<Post> posts = new RssParser().parse(open(FEED_PAGE));
+
+        assertEquals(3, posts.size());
+        Post post = posts.get(0);
+        // Character references are decoded
+        assertEquals("We\u2019re launching the new Open Access Button", post.title);
+        assertEquals("http://blog.openaccessbutton.org/2014/10/14/launching-the-new-button/", post.link);
+        assertEquals("Joseph McArthur", post.author);
+        assertEquals(1413282600000L, post.date.getTime());
+        assertEquals(1412269512000L, posts.get(1).date.getTime());
+        assertEquals("Paywalls by the numbers", posts.get(2).title);
+    }
+
+    public void testParsesLaterPage() throws Exception {
+        List<Post> posts = new RssParser().parse(open("blog_feed_page2.xml"));
+
+        assertEquals(3, posts.size());
+        assertEquals("Why paywalls matter to patients", posts.get(0).title);
+        assertEquals("http://blog.openaccessbutton.org/2014/08/12/how-the-map-works/", posts.get(2).link);
+        assertTrue(posts.get(2).content.contains("research & told us"));
+    }
+
+    public void testRemovesTrailers() throws Exception {
+        Post post = new RssParser().parse(open(FEED_PAGE)).get(0);
+
+        // The " [...]" and tracking pixel are replaced by our own ellipsis
+        assertEquals("Today, at the start of Open Access Week, we\u2019re launching the new Open "
+                + "Access Button...", post.description);
+        assertTrue(post.content.contains("the research you need & tells us"));
+        assertFalse(post.content.contains("pixel.wp.com"));
+    }
+
+    public void testSummaryOnlySkipsContent() throws Exception {
+        List<Post> full = new RssParser().parse(open(FEED_PAGE));
+        List<Post> summaries = new RssParser(true).parse(open(FEED_PAGE));
+
+        assertEquals(full.size(), summaries.size());
+        for (int i=0; i<full.size(); i++) {
+            Post summary = summaries.get(i);
+            assertNull(summary.content);
+            assertEquals(full.get(i).title, summary.title);
+            assertEquals(full.get(i).description, summary.description);
+            assertEquals(full.get(i).date, summary.date);
+            assertEquals(full.get(i).author, summary.author);
+            assertEquals(full.get(i).link, summary.link);
+        }
+    }
+
+    public void testListenerGetsEachPostInOrder() throws Exception {
+        final List<Post> seen = new ArrayList<Post>();
+        List<Post> posts = new RssParser(true).parse(open(FEED_PAGE), new RssParser.OnPostListener() {
+            @Override
+            public void onPost(Post post) {
+                seen.add(post);
+            }
+        });
+
+        assertEquals(posts, seen);
+    }
+
+    public void testElementInsideTextIsAnError() throws Exception {
+        String feed = "<rss><channel><item><title>A <b>bold</b> title</title>"
+                + "<link>http://example.com/</link></item><item><title>Second</title></item>"
+                + "</channel></rss>";
+        try {
+            new RssParser().parse(new ByteArrayInputStream(feed.getBytes("UTF-8")));
+            fail("Parsed a page with an element inside a title");
+        } catch (XmlPullParserException e) {
+            // Rather than returning a page cut short
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.map;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.List;
+
+/**
+ * Round trips stories through the format StoryCache saves them in
+ */
+public class StoryStoreTest extends TestCase {
+    private static StoryStore storeWithStories() {
+        StoryStore store = new StoryStore();
+        store.add("1", 51.5, -0.1, "First", "10.1/a", "Student", "http://a", "2014-10-01", "ann", "A");
+        store.add("2", 51.5, -0.1, "Second \u2013 same place", "", "Doctor", "http://b", "2014-10-03", "", "B");
+        store.add("3", -33.9, 151.2, "Third", "", "Student", "http://c", "2014-10-02", "cy", "C");
+        return store;
+    }
+
+    private static byte[] write(StoryStore store) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        store.writeTo(out);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    public void testReadIntoEmptyStore() throws Exception {
+        StoryStore original = storeWithStories();
+        StoryStore copy = new StoryStore();
+        List<Item> added = copy.readFrom(new DataInputStream(new ByteArrayInputStream(write(original))));
+
+        assertEquals(3, added.size());
+        assertEquals(3, copy.size());
+        assertEquals("2014-10-03", copy.lastAccessed());
+        for (int i=0; i<3; i++) {
+            Item item = added.get(i);
+            Item expected = original.items()[i];
+            assertEquals(expected.id(), item.id());
+            assertEquals(expected.story(), item.story());
+            assertEquals(expected.userProfession(), item.userProfession());
+            // Spread out the same way as when they were first added
+            assertEquals(expected.getPosition(), item.getPosition());
+        }
+        // Can still add to it afterwards
+        assertNotNull(copy.add("4", 0, 0, "Fourth", "", "Other", "http://d", "2014-10-04", "", ""));
+        assertEquals("Fourth", copy.items()[3].story());
+    }
+
+    public void testReadIntoStoreSkipsDuplicates() throws Exception {
+        StoryStore copy = new StoryStore();
+        copy.add("2", 51.5, -0.1, "Second", "", "Doctor", "http://b", "2014-10-03", "", "B");
+        List<Item> added = copy.readFrom(new DataInputStream(new ByteArrayInputStream(write(storeWithStories()))));
+
+        assertEquals(2, added.size());
+        assertEquals(3, copy.size());
+    }
+}
@@ -29,6 +29,7 @@ import android.widget.ListView;
 import org.openaccessbutton.openaccessbutton.about.AboutActivity;
 import org.openaccessbutton.openaccessbutton.advocacy.AdvocacyFragment;
 import org.openaccessbutton.openaccessbutton.advocacy.QuestionsActivity;
+import org.openaccessbutton.openaccessbutton.api.BlockedOutbox;
 import org.openaccessbutton.openaccessbutton.intro.LaunchActivity;
 import org.openaccessbutton.openaccessbutton.intro.SignupActivity;
 import org.openaccessbutton.openaccessbutton.menu.MenuActivity;
@@ -68,6 +69,8 @@ public class MainActivity extends ActionBarActivity implements OnFragmentNeededL
         setContentView(R.layout.activity_main);
         initialiseNavigation();
         Push.initialisePushNotifications(this);
+        // Send any paywall reports left over from last time we were offline
+        BlockedOutbox.drain(this);
 
         // We might need to launch a specific fragment passed in via the intent
         Intent intent = getIntent();
@@ -23,13 +23,14 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.goebl.david.Response;
-import com.goebl.david.Webb;
 import com.parse.ParseInstallation;
 
 import org.json.JSONObject;
 import org.openaccessbutton.openaccessbutton.OnShareIntentInterface;
 import org.openaccessbutton.openaccessbutton.R;
 import org.openaccessbutton.openaccessbutton.advocacy.XmlParser;
+import org.openaccessbutton.openaccessbutton.api.Http;
+import org.openaccessbutton.openaccessbutton.api.NetworkExecutor;
 import org.openaccessbutton.openaccessbutton.intro.IntroActivity;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -151,7 +152,7 @@ public class AdvocacyFragment extends Fragment {
                 if (newQuestion.getText().length() > 0) {
 
                     // Submit the question to the web service
-                    Thread thread = new Thread(new Runnable() {
+                    NetworkExecutor.submit(NetworkExecutor.Priority.USER_BLOCKING, new Runnable() {
                         @Override
                         public void run() {
                             try {
@@ -173,9 +174,9 @@ public class AdvocacyFragment extends Fragment {
                                 });
 
 
-                                    Webb webb = Webb.create();
-                                JSONObject response = webb
-                                        .post("http://oabuttonquestions.herokuapp.com/questions/new")
+                                JSONObject response = Http
+                                        .post("http://oabuttonquestions.herokuapp.com/questions/new",
+                                                Http.Timeouts.QUESTIONS)
                                         .param("user_id", user_id)
                                         .param("question", newQuestion.getText())
                                         .ensureSuccess()
@@ -197,7 +198,6 @@ public class AdvocacyFragment extends Fragment {
                             }
                         }
                     });
-                    thread.start();
                 } else {
                     Toast.makeText(getActivity(), getActivity().getResources().getString(R.string.blank_question_error), Toast.LENGTH_LONG).show();
                 }
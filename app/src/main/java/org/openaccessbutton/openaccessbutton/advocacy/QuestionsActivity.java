@@ -5,6 +5,7 @@ import android.app.ListActivity;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.LayoutInflater;
@@ -16,25 +17,38 @@ import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.goebl.david.Webb;
 import com.parse.ParseInstallation;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.openaccessbutton.openaccessbutton.R;
 import org.openaccessbutton.openaccessbutton.about.AboutActivity;
+import org.openaccessbutton.openaccessbutton.api.Http;
+import org.openaccessbutton.openaccessbutton.api.NetworkExecutor;
+import org.openaccessbutton.openaccessbutton.api.SingleFlight;
 import org.openaccessbutton.openaccessbutton.preferences.AppPreferencesActivity;
 import org.w3c.dom.Text;
 
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
 
 public class QuestionsActivity extends ListActivity {
+    private static final String QUESTIONS_URL = "http://oabuttonquestions.herokuapp.com/questions.json";
+
+    // Last parsed questions, so they needn't be parsed again if they haven't changed. Loads run
+    // on pool threads, so they're replaced as a whole rather than field by field.
+    private static volatile ParsedQuestions sParsed;
+    // Loads in progress, by URL
+    private static final SingleFlight<String, Question[]> sQuestionLoads = new SingleFlight<String, Question[]>();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         LoadQuestionsTask task = new LoadQuestionsTask(this);
-        task.execute();
+        // Not the default serial executor, so a load still running from before a rotation can be
+        // shared rather than queued behind
+        task.executeOnExecutor(NetworkExecutor.executor(NetworkExecutor.Priority.BACKGROUND));
 
     }
 
@@ -91,26 +105,19 @@ public class QuestionsActivity extends ListActivity {
                 user_id = installation.getObjectId();
             }
 
-            Webb webb = Webb.create();
-            JSONObject result = webb
-                    .get("http://oabuttonquestions.herokuapp.com/questions.json")
-                    .param("user_id", user_id)
-                    .ensureSuccess()
-                    .asJsonObject()
-                    .getBody();
-
+            final String url = QUESTIONS_URL + "?user_id=" + Uri.encode(user_id);
 
             Question[] questions;
 
             try {
-                JSONArray questionsJson = result.getJSONArray("questions");
-                questions = new Question[questionsJson.length()];
-                for(int i=0; i<questionsJson.length(); i++) {
-                    JSONObject questionJson = questionsJson.getJSONObject(i);
-                    Question question = new Question(questionJson.getString("question"), questionJson.getString("answer"));
-                    questions[i] = question;
-                }
-
+                // If the same questions are already being loaded (e.g., before a rotation) then
+                // wait for that rather than fetching them twice
+                questions = sQuestionLoads.run(url, new Callable<Question[]>() {
+                    @Override
+                    public Question[] call() throws Exception {
+                        return loadQuestions(mContext, url);
+                    }
+                });
             } catch (Exception e) {
                 questions = null;
                 e.printStackTrace();
@@ -134,6 +141,46 @@ public class QuestionsActivity extends ListActivity {
         }
     }
 
+    /**
+     * Questions parsed from a version of the response for a URL
+     */
+    private static class ParsedQuestions {
+        final String url;
+        final long version;
+        final Question[] questions;
+
+        ParsedQuestions(String url, long version, Question[] questions) {
+            this.url = url;
+            this.version = version;
+            this.questions = questions;
+        }
+    }
+
+    private static Question[] loadQuestions(Context context, String url) throws Exception {
+        ParsedQuestions parsed = sParsed;
+        // Always revalidate, so newly answered questions show up straight away
+        long knownVersion = (parsed != null && url.equals(parsed.url)) ? parsed.version : Http.NO_VERSION;
+        Http.Response response = Http.get(context, url, Http.Timeouts.QUESTIONS, 0, 0,
+                knownVersion);
+        if (response.isNotModified()) {
+            return parsed.questions;
+        }
+
+        JSONObject result = new JSONObject(Http.readString(response.body));
+        JSONArray questionsJson = result.getJSONArray("questions");
+        Question[] questions = new Question[questionsJson.length()];
+        for(int i=0; i<questionsJson.length(); i++) {
+            JSONObject questionJson = questionsJson.getJSONObject(i);
+            Question question = new Question(questionJson.getString("question"), questionJson.getString("answer"));
+            questions[i] = question;
+        }
+
+        if (response.version != Http.NO_VERSION) {
+            sParsed = new ParsedQuestions(url, response.version, questions);
+        }
+        return questions;
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
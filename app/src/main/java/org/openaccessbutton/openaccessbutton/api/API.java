@@ -1,47 +1,64 @@
 package org.openaccessbutton.openaccessbutton.api;
 
-import android.app.Activity;
-import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
-import android.widget.Toast;
 
-import com.goebl.david.Webb;
 import com.goebl.david.WebbException;
+import com.google.android.gms.maps.model.LatLngBounds;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.openaccessbutton.openaccessbutton.R;
 import org.openaccessbutton.openaccessbutton.map.Item;
+import org.openaccessbutton.openaccessbutton.map.StoryStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
 
 /**
  * Created by rickards on 10/14/14.
  */
 public class API {
     public final static String API_URL = "https://openaccessbutton.org/api";
+    public final static String STORY_QUERY_URL = "https://openaccessbutton.org/query";
 
-    public interface SignupCallback {
-        void onComplete(String username, String apikey);
+    // Number of stories fetched per request, so the first markers show up quickly
+    final static int STORY_PAGE_SIZE = 250;
+    // Pages are fetched with from/size, so they need a fixed order or stories reported while
+    // paging would shift results between pages and be skipped or repeated. Oldest first means
+    // new stories land after the pages we've already got; _uid breaks ties.
+    private final static String STORY_SORT = "[{\"accessed\":\"asc\"},\"_uid\"]";
+    private final static String STORY_FIELDS = "[\"coords.lat\",\"coords.lng\",\"story\",\"doi\",\"user_profession\",\"url\",\"accessed\",\"user_name\",\"description\"]";
+
+    public interface ErrorCallback {
         void onError(String message);
     }
 
+    public interface SignupCallback extends ErrorCallback {
+        void onComplete(String username, String apikey);
+    }
+
     public interface OAuthSignupCallback {
         void onComplete(String username, String apikey);
     }
 
-    public interface SigninCallback {
+    public interface SigninCallback extends ErrorCallback {
         void onComplete(String username, String apikey);
-        void onError(String message);
     }
 
     public interface StoryListCallback {
-        void onComplete(Item[] stories);
+        // Called (on a background thread, so the stories can be processed there) with each page
+        // of stories as it arrives. Only stories which weren't already in the store are included.
+        void onStories(Item[] stories);
+        // Called on the main thread once every page has been delivered, as is onError()
+        void onComplete();
         void onError(String message);
     }
 
-    public interface Callback {
+    public interface BlockedCallback extends ErrorCallback {
+        // Called on the main thread once the report is safely stored, before it's been sent
         void onComplete();
     }
 
@@ -50,14 +67,16 @@ public class API {
         callback.onComplete("", "");
     }
 
-    public static void signupRequest(final SignupCallback callback, final Context context, final String email, final String profession, final String username, final String password) {
-        final ProgressDialog dialog = createProgressDialog(context);
+    /**
+     * Create an account. Callbacks are made on the main thread.
+     */
+    public static ApiRequest signupRequest(final SignupCallback callback, Context context, final String email, final String profession, final String username, final String password) {
+        final Context appContext = context.getApplicationContext();
+        final ApiRequest request = new ApiRequest();
         Runnable r = new Runnable() {
             public void run() {
                 try {
-                    Webb webb = Webb.create();
-                    JSONObject result = webb
-                            .post(API_URL + "/register")
+                    JSONObject result = Http.post(API_URL + "/register", Http.Timeouts.API)
                             .param("email", email)
                             .param("profession", profession)
                             .param("username", username)
@@ -66,94 +85,119 @@ public class API {
                             .getBody();
 
                     if (result == null) {
-                        throw new Error("Email address already registered");
+                        // Email address already registered
+                        deliverError(request, callback, appContext, R.string.username_already_taken, null);
+                        return;
                     }
 
-                    String apiKey = result.getString("api_key");
-                    String username = result.getString("username");
+                    final String apiKey = result.getString("api_key");
+                    final String username = result.getString("username");
 
                     // Store API key so we know we're authenticated (and skip intro pages)
                     // and also for making API requests
-                    SharedPreferences prefs = context.getSharedPreferences("org.openaccessbutton.openaccessbutton", Context.MODE_PRIVATE);
-                    SharedPreferences.Editor edit = prefs.edit();
-                    edit.clear();
-                    edit.putString("api_key", apiKey);
-                    edit.putString("username", username);
-                    edit.apply();
-
-                    closeProgressDialog(dialog, context);
-                    callback.onComplete(username, apiKey);
+                    saveCredentials(appContext, apiKey, username);
+
+                    request.deliverLast(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onComplete(username, apiKey);
+                        }
+                    });
                 } catch (JSONException e) {
-                    e.printStackTrace();
-                    closeProgressDialog(dialog, context);
-                    callback.onError(context.getResources().getString(R.string.username_already_taken));
-                } catch (Error e) {
-                    e.printStackTrace();
-                    closeProgressDialog(dialog, context);
-                    callback.onError(context.getResources().getString(R.string.username_already_taken));
+                    deliverError(request, callback, appContext, R.string.username_already_taken, e);
+                } catch (WebbException e) {
+                    deliverError(request, callback, appContext, R.string.username_already_taken, e);
                 }
             }
         };
-        (new Thread(r)).start();
+        request.setFuture(NetworkExecutor.submit(NetworkExecutor.Priority.USER_BLOCKING, r));
+        return request;
     }
 
-    public static void signinRequest(final SigninCallback callback, final Context context, final String username, final String password) {
-        final ProgressDialog dialog = createProgressDialog(context);
+    /**
+     * Sign in to an existing account. Callbacks are made on the main thread.
+     */
+    public static ApiRequest signinRequest(final SigninCallback callback, Context context, final String username, final String password) {
+        final Context appContext = context.getApplicationContext();
+        final ApiRequest request = new ApiRequest();
         Runnable r = new Runnable() {
             @Override
             public void run() {
                 try {
-                    Webb webb = Webb.create();
-                    JSONObject result = webb
-                            .post(API_URL + "/retrieve")
+                    JSONObject result = Http.post(API_URL + "/retrieve", Http.Timeouts.API)
                             .param("username", username)
                             .param("password", password)
                             .ensureSuccess()
                             .asJsonObject()
                             .getBody();
-                    String apiKey = result.getString("api_key");
+                    final String apiKey = result.getString("api_key");
                     if ((apiKey == null) || (apiKey.equals(""))) {
                         Log.w("result", result.toString());
-                        throw new Error("Invalid username or password");
+                        deliverError(request, callback, appContext, R.string.invalid_username_password, null);
+                        return;
                     }
 
                     // Store API key so we know we're authenticated (and skip intro pages)
                     // and also for making API requests
-                    SharedPreferences prefs = context.getSharedPreferences("org.openaccessbutton.openaccessbutton", Context.MODE_PRIVATE);
-                    SharedPreferences.Editor edit = prefs.edit();
-                    edit.clear();
-                    edit.putString("api_key", apiKey);
-                    edit.putString("username", username);
-                    edit.apply();
-
-                    closeProgressDialog(dialog, context);
-                    callback.onComplete(username, apiKey);
+                    saveCredentials(appContext, apiKey, username);
+
+                    request.deliverLast(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onComplete(username, apiKey);
+                        }
+                    });
                 } catch (JSONException e) {
-                    e.printStackTrace();
-                    closeProgressDialog(dialog, context);
-                    callback.onError(context.getResources().getString(R.string.invalid_username_password));
-                } catch (Error e) {
-                    e.printStackTrace();
-                    closeProgressDialog(dialog, context);
-                    callback.onError(context.getResources().getString(R.string.invalid_username_password));
+                    deliverError(request, callback, appContext, R.string.invalid_username_password, e);
                 } catch (WebbException e) {
-                    e.printStackTrace();
-                    closeProgressDialog(dialog, context);
-                    callback.onError(context.getResources().getString(R.string.invalid_username_password));}
+                    deliverError(request, callback, appContext, R.string.invalid_username_password, e);
                 }
+            }
         };
-        (new Thread(r)).start();
-
+        request.setFuture(NetworkExecutor.submit(NetworkExecutor.Priority.USER_BLOCKING, r));
+        return request;
     }
 
-    public static void blockedRequest(final Callback callback, final Context context, final String url, final Double mLatitude, final Double mLongitude, final String story, final boolean wishlist) {
+    private static void saveCredentials(Context context, String apiKey, String username) {
         SharedPreferences prefs = context.getSharedPreferences("org.openaccessbutton.openaccessbutton", Context.MODE_PRIVATE);
-        final String apiKey = prefs.getString("api_key", "");
+        SharedPreferences.Editor edit = prefs.edit();
+        edit.clear();
+        edit.putString("api_key", apiKey);
+        edit.putString("username", username);
+        edit.apply();
+    }
+
+    /**
+     * Log why a request failed, if there's an exception, and pass the message to the callback
+     * on the main thread
+     */
+    private static void deliverError(ApiRequest request, final ErrorCallback callback, Context context, int messageId, Exception e) {
+        if (e != null) {
+            e.printStackTrace();
+        }
+        final String message = context.getResources().getString(messageId);
+        request.deliverLast(new Runnable() {
+            @Override
+            public void run() {
+                callback.onError(message);
+            }
+        });
+    }
 
-        final ProgressDialog dialog = createProgressDialog(context);
+    /**
+     * Report a paywall. The report is stored and then sent in the background (see BlockedOutbox),
+     * so this completes as soon as it's safely on disk, whether or not we're online. Callbacks
+     * are made on the main thread.
+     */
+    public static ApiRequest blockedRequest(final BlockedCallback callback, Context context, final String url, final Double mLatitude, final Double mLongitude, final String story, final boolean wishlist) {
+        final Context appContext = context.getApplicationContext();
+        final ApiRequest request = new ApiRequest();
         Runnable r = new Runnable() {
             @Override
             public void run() {
+                SharedPreferences prefs = appContext.getSharedPreferences("org.openaccessbutton.openaccessbutton", Context.MODE_PRIVATE);
+                final String apiKey = prefs.getString("api_key", "");
+
                 JSONObject data = new JSONObject();
                 // on errors, we just post off whatever data we could dump into JSON for now
                 try {
@@ -175,93 +219,94 @@ public class API {
                     }
                 } catch (JSONException e) { e.printStackTrace(); }
 
-                Webb webb = Webb.create();
-                JSONObject result = webb
-                        .post(API_URL + "/blocked")
-                        .param("api_key", apiKey) // We need to get this when the user signs up
-                        .body(data)
-                        .ensureSuccess()
-                        .asJsonObject()
-                        .getBody();
-
-                closeProgressDialog(dialog, context);
-                callback.onComplete();
+                try {
+                    // We need the API key from when the user signed up
+                    BlockedOutbox.add(appContext, apiKey, data);
+                    request.deliverLast(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onComplete();
+                        }
+                    });
+                } catch (IOException e) {
+                    deliverError(request, callback, appContext, R.string.needAccessError, e);
+                }
             }
         };
-        (new Thread(r)).start();
-
+        request.setFuture(NetworkExecutor.submit(NetworkExecutor.Priority.USER_BLOCKING, r));
+        return request;
     }
 
-    public static void storyListRequest(final StoryListCallback callback, final Context context) {
-        final ProgressDialog dialog = createProgressDialog(context);
-        Runnable r = new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    // TODO are we getting all of them?
-                    String query = "{\"size\":1000,\"query\":{\"match_all\":{}},\"fields\":[\"coords.lat\",\"coords.lng\",\"story\",\"doi\",\"user_profession\",\"url\",\"accessed\",\"user_name\",\"description\"]}";
-
-                    Webb webb = Webb.create();
-                    JSONObject results = webb
-                        .get("https://openaccessbutton.org/query")
-                        .param("source", query)
-                        .ensureSuccess()
-                        .asJsonObject()
-                        .getBody();
-                    closeProgressDialog(dialog, context);
-
-                    JSONArray hits = results.getJSONObject("hits").getJSONArray("hits");
-                    Item[] items = new Item[hits.length()];
-                    for (int i=0; i<hits.length(); i++) {
-                        JSONObject fields = hits.getJSONObject(i).getJSONObject("fields");
-                        // These are to 1dp however we want to spread them out
-                        // TODO Use some super-ultra-fast-but-still-provably-random-library rather than doing this
-                        double lat = fields.getDouble("coords.lat") + 0.0005*(((i*i)%200)-100);
-                        double lng = fields.getDouble("coords.lng") + 0.0005*(((i*i*i)%200)-100);
-                        String story = fields.getString("story");
-                        String doi = fields.getString("doi");
-                        String userProfession = fields.getString("user_profession");
-                        String url = fields.getString("url");
-                        String accessed = fields.getString("accessed");
-                        String userName = fields.getString("user_name");
-                        String description = fields.getString("description");
-                        items[i] = new Item(lat, lng, story, doi, userProfession, url, accessed, userName, description);
-                    }
+    /**
+     * Fetch every story, or only those accessed since a given time. Used to fill and then keep
+     * up to date the on-disk copy of the stories. If the same stories are already being fetched
+     * into store then this joins that request rather than making another.
+     * @param store Store to add the stories to
+     * @param since Only fetch stories with an accessed timestamp at or after this, or null for all
+     */
+    public static ApiRequest storyListRequest(final StoryListCallback callback, final Context context, StoryStore store, String since) {
+        String filter = null;
+        if (since != null) {
+            // Not gt, since stories with the same timestamp may have arrived after we last
+            // synced. The ones we've already got are skipped by the store.
+            filter = "{\"range\":{\"accessed\":{\"gte\":" + JSONObject.quote(since) + "}}}";
+        }
+        // Keeps going if cancelled, since the stories are wanted whoever asked for them
+        return StoryFlight.join(context, store, filter, true, callback);
+    }
 
-                    callback.onComplete(items);
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                    closeProgressDialog(dialog, context);
-                    callback.onError(context.getResources().getString(R.string.map_error));
-                } catch (Error e) {
-                    e.printStackTrace();
-                    closeProgressDialog(dialog, context);
-                    callback.onError(context.getResources().getString(R.string.map_error));
-                } catch (WebbException e) {
-                    e.printStackTrace();
-                    closeProgressDialog(dialog, context);
-                    callback.onError(context.getResources().getString(R.string.map_error));}
-            }
-        };
-        (new Thread(r)).start();
+    /**
+     * Fetch only the stories inside the given bounds (e.g., the visible part of the map). Joins
+     * any request already fetching the same bounds into store.
+     */
+    public static ApiRequest storyBoundsRequest(final StoryListCallback callback, final Context context, StoryStore store, LatLngBounds bounds) {
+        return StoryFlight.join(context, store, boundsFilter(bounds), false, callback);
     }
 
-    protected static ProgressDialog createProgressDialog(Context context) {
-        ProgressDialog progress = new ProgressDialog(context);
-        progress.setTitle("Loading");
-        progress.setMessage("Please wait...");
-        progress.show();
+    /**
+     * Send a query to the story search endpoint. Results change too often to be worth caching
+     * for any length of time, but they're revalidated if the server gives us validators.
+     * @param source Elasticsearch query
+     * @return The response body
+     * @throws IOException If the request fails or doesn't succeed
+     */
+    static InputStream fetchStories(Context context, String source) throws IOException {
+        String url = STORY_QUERY_URL + "?source=" + URLEncoder.encode(source, "UTF-8");
+        return Http.get(context, url, Http.Timeouts.STORIES, 0, 0, Http.NO_VERSION).body;
+    }
 
-        return progress;
+    /**
+     * Elasticsearch query for one page of stories
+     * @param filter Elasticsearch filter to restrict the stories to, or null for all of them
+     */
+    static String storyQuery(int from, int size, String filter) {
+        String query = "{\"match_all\":{}}";
+        if (filter != null) {
+            query = "{\"filtered\":{\"query\":" + query + ",\"filter\":" + filter + "}}";
+        }
+        return "{\"from\":" + from + ",\"size\":" + size + ",\"query\":" + query + ",\"sort\":" + STORY_SORT + ",\"fields\":" + STORY_FIELDS + "}";
     }
 
-    // Context must be an Activity
-    protected static void closeProgressDialog(final ProgressDialog dialog, Context context) {
-        ((Activity) context).runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                dialog.dismiss();
-            }
-        });
+    /**
+     * Elasticsearch filter matching stories inside bounds. Stories store their location as
+     * separate coords.lat/coords.lng numbers rather than a geo_point, so this uses range filters
+     * rather than geo_bounding_box.
+     */
+    private static String boundsFilter(LatLngBounds bounds) {
+        double south = bounds.southwest.latitude;
+        double north = bounds.northeast.latitude;
+        double west = bounds.southwest.longitude;
+        double east = bounds.northeast.longitude;
+
+        String lat = "{\"range\":{\"coords.lat\":{\"gte\":" + south + ",\"lte\":" + north + "}}}";
+        String lng;
+        if (west <= east) {
+            lng = "{\"range\":{\"coords.lng\":{\"gte\":" + west + ",\"lte\":" + east + "}}}";
+        } else {
+            // Bounds cross the antimeridian
+            lng = "{\"or\":[{\"range\":{\"coords.lng\":{\"gte\":" + west + "}}},"
+                    + "{\"range\":{\"coords.lng\":{\"lte\":" + east + "}}}]}";
+        }
+        return "{\"and\":[" + lat + "," + lng + "]}";
     }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.api;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Future;
+
+/**
+ * Handle to a request made through API.
+ *
+ * Results are delivered on the main thread, and never once the request has been cancelled, so
+ * callers can update their UI straight from the callbacks. Requests can be tied to an Activity
+ * with cancelOnDestroy() so they don't outlive (and leak) it.
+ */
+public class ApiRequest {
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private volatile boolean mCancelled;
+    private Future<?> mFuture;
+    private Runnable mOnCancel;
+    private Application mApplication;
+    private Application.ActivityLifecycleCallbacks mLifecycleCallbacks;
+
+    ApiRequest() {}
+
+    /**
+     * Stop the request. No more callbacks will be made.
+     * Must be called on the main thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+        synchronized (this) {
+            if (mFuture != null) {
+                mFuture.cancel(true);
+            }
+        }
+        if (mOnCancel != null) {
+            mOnCancel.run();
+        }
+        unbind();
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Cancel the request automatically when activity is destroyed.
+     * Must be called on the main thread.
+     */
+    public ApiRequest cancelOnDestroy(final Activity activity) {
+        unbind();
+        mApplication = activity.getApplication();
+        mLifecycleCallbacks = new Application.ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityDestroyed(Activity destroyed) {
+                if (destroyed == activity) {
+                    cancel();
+                }
+            }
+
+            @Override public void onActivityCreated(Activity a, Bundle savedInstanceState) {}
+            @Override public void onActivityStarted(Activity a) {}
+            @Override public void onActivityResumed(Activity a) {}
+            @Override public void onActivityPaused(Activity a) {}
+            @Override public void onActivityStopped(Activity a) {}
+            @Override public void onActivitySaveInstanceState(Activity a, Bundle outState) {}
+        };
+        mApplication.registerActivityLifecycleCallbacks(mLifecycleCallbacks);
+        return this;
+    }
+
+    synchronized void setFuture(Future<?> future) {
+        mFuture = future;
+        if (mCancelled) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Run r when the request is cancelled, for requests which aren't just a Future
+     */
+    void setOnCancel(Runnable r) {
+        mOnCancel = r;
+    }
+
+    /**
+     * Run r on the main thread, unless the request has been cancelled by then. For the last
+     * callback of the request, after which it's finished with.
+     */
+    void deliverLast(final Runnable r) {
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled) {
+                    r.run();
+                }
+                unbind();
+            }
+        });
+    }
+
+    private void unbind() {
+        if (mLifecycleCallbacks != null) {
+            mApplication.unregisterActivityLifecycleCallbacks(mLifecycleCallbacks);
+            mLifecycleCallbacks = null;
+            mApplication = null;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.api;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.goebl.david.Response;
+import com.goebl.david.WebbException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Paywall reports waiting to be sent to the API.
+ *
+ * Reports are written to a file as soon as they're made, so the user never has to wait for the
+ * network, and are then sent in the background. If sending fails we try again with exponential
+ * backoff, or as soon as we're back online (OutboxReceiver is only enabled while there's
+ * something waiting, so the app isn't woken on every connectivity change otherwise).
+ *
+ * The file has one JSON object per line: {"api_key": ..., "data": {...}}. New reports are
+ * appended and sent ones removed from the start, so it's always in the order they were made.
+ */
+public class BlockedOutbox {
+    private static final String FILE = "blocked_outbox";
+    private static final String PREFS = "org.openaccessbutton.openaccessbutton";
+    private static final String PREF_ATTEMPTS = "blocked_outbox_attempts";
+
+    // Reports sent per pass over the file, so a long backlog is removed from it as it goes
+    private static final int BATCH_SIZE = 10;
+    private static final long MIN_BACKOFF_MS = 30 * 1000;
+    private static final long MAX_BACKOFF_MS = 60 * 60 * 1000;
+
+    // Whether a drain is running, guarded by the class lock
+    private static boolean sDraining;
+
+    private BlockedOutbox() {}
+
+    /**
+     * Store a report and start sending it. Blocks for a local file write (and may wait for a
+     * drain to finish rewriting the file), so shouldn't be called on the UI thread.
+     */
+    public static void add(Context context, String apiKey, JSONObject data) throws IOException {
+        JSONObject report = new JSONObject();
+        try {
+            report.put("api_key", apiKey);
+            report.put("data", data);
+        } catch (JSONException e) {
+            // Only thrown for null keys
+            throw new AssertionError(e);
+        }
+
+        synchronized (BlockedOutbox.class) {
+            FileOutputStream out = context.openFileOutput(FILE, Context.MODE_APPEND);
+            try {
+                // JSONObject escapes newlines, so this is always a single line
+                out.write((report.toString() + "\n").getBytes("UTF-8"));
+                // Make sure it survives the process being killed as soon as we return
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            setReceiverEnabled(context, true);
+        }
+
+        drain(context);
+    }
+
+    /**
+     * Send everything waiting, in the background. Does nothing if that's already happening.
+     */
+    public static void drain(Context context) {
+        final Context appContext = context.getApplicationContext();
+        synchronized (BlockedOutbox.class) {
+            if (sDraining) return;
+            sDraining = true;
+        }
+        NetworkExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drainNow(appContext);
+                } catch (RuntimeException e) {
+                    // Don't stop later drains from ever starting
+                    stopDraining();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Called when connectivity changes. Coming back online retries straight away, skipping any
+     * backoff.
+     */
+    static void onConnectivityChanged(Context context) {
+        if (isOnline(context)) {
+            resetAttempts(context);
+            drain(context);
+        }
+    }
+
+    private static void drainNow(Context context) {
+        while (true) {
+            List<String> batch = nextBatch(context);
+            if (batch == null) {
+                // All sent
+                return;
+            }
+
+            if (!isOnline(context)) {
+                // OutboxReceiver will start us again when we're back online
+                stopDraining();
+                return;
+            }
+
+            int done = 0;
+            boolean failed = false;
+            for (String line : batch) {
+                if (!send(line)) {
+                    failed = true;
+                    break;
+                }
+                done++;
+            }
+            remove(context, done);
+
+            if (failed) {
+                stopDraining();
+                scheduleRetry(context);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send one report
+     * @return Whether it's finished with, i.e., sent or permanently rejected
+     */
+    private static boolean send(String line) {
+        try {
+            JSONObject report = new JSONObject(line);
+            // Whether it's been accepted only depends on the status, so the body isn't parsed
+            // (a 2xx whose body isn't JSON would otherwise look like a failure and be resent)
+            Response<Void> response = Http.post(API.API_URL + "/blocked", Http.Timeouts.API)
+                    .param("api_key", report.getString("api_key"))
+                    .body(report.getJSONObject("data"))
+                    .asVoid();
+            int status = response.getStatusCode();
+            if (response.isSuccess()) {
+                return true;
+            }
+            if (status >= 400 && status < 500 && status != 408 && status != 429) {
+                // Retrying won't help, so don't let it hold up everything behind it
+                Log.e("oab", "Paywall report rejected: " + status);
+                return true;
+            }
+            return false;
+        } catch (JSONException e) {
+            // Corrupt line, which we'll never be able to send
+            Log.e("oab", "Dropping unreadable paywall report", e);
+            return true;
+        } catch (WebbException e) {
+            Log.e("oab", "Couldn't send paywall report", e);
+            return false;
+        }
+    }
+
+    /**
+     * Up to BATCH_SIZE of the oldest reports, or null (and stop draining) if they've all been
+     * sent
+     */
+    private static synchronized List<String> nextBatch(Context context) {
+        List<String> lines = readLines(context, BATCH_SIZE);
+        if (lines.isEmpty()) {
+            // Under the lock so we can't switch the receiver off just after add() switched it on
+            sDraining = false;
+            setReceiverEnabled(context, false);
+            resetAttempts(context);
+            return null;
+        }
+        return lines;
+    }
+
+    private static synchronized void stopDraining() {
+        sDraining = false;
+    }
+
+    /**
+     * Remove the oldest count reports
+     */
+    private static synchronized void remove(Context context, int count) {
+        if (count == 0) return;
+        List<String> remaining = readLines(context, Integer.MAX_VALUE);
+        remaining = remaining.subList(Math.min(count, remaining.size()), remaining.size());
+
+        File file = context.getFileStreamPath(FILE);
+        File tmp = context.getFileStreamPath(FILE + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                for (String line : remaining) {
+                    out.write((line + "\n").getBytes("UTF-8"));
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Couldn't replace outbox");
+            }
+        } catch (IOException e) {
+            // They'll be sent again, which is better than losing any
+            Log.e("oab", "Couldn't remove sent paywall reports", e);
+        }
+    }
+
+    private static List<String> readLines(Context context, int max) {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(context.openFileInput(FILE), "UTF-8"));
+            String line;
+            while (lines.size() < max && (line = in.readLine()) != null) {
+                if (line.length() > 0) {
+                    lines.add(line);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing's been added yet
+        } catch (IOException e) {
+            Log.e("oab", "Couldn't read paywall reports", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing we can do
+                }
+            }
+        }
+        return lines;
+    }
+
+    private static void scheduleRetry(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        int attempts = prefs.getInt(PREF_ATTEMPTS, 0);
+        prefs.edit().putInt(PREF_ATTEMPTS, attempts + 1).apply();
+
+        // 30s, 1m, 2m, ... up to an hour
+        long backoff = MIN_BACKOFF_MS << Math.min(attempts, 20);
+        backoff = Math.min(backoff, MAX_BACKOFF_MS);
+
+        AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent retry = PendingIntent.getBroadcast(context, 0,
+                new Intent(context, OutboxReceiver.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        alarms.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + backoff, retry);
+    }
+
+    private static void resetAttempts(Context context) {
+        context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                .remove(PREF_ATTEMPTS)
+                .apply();
+    }
+
+    private static boolean isOnline(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = cm.getActiveNetworkInfo();
+        return network != null && network.isConnected();
+    }
+
+    private static void setReceiverEnabled(Context context, boolean enabled) {
+        context.getPackageManager().setComponentEnabledSetting(
+                new ComponentName(context, OutboxReceiver.class),
+                enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                        : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.api;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Least recently used cache of HTTP response bodies on disk, along with the validators (ETag,
+ * Last-Modified) needed to revalidate them. Used by Http.
+ *
+ * Each entry is two files named after a hash of the URL: the body and a small metadata file.
+ */
+class DiskCache {
+    private static final String META_SUFFIX = ".meta";
+    private static final String BODY_SUFFIX = ".body";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * A cached response
+     */
+    static class Entry {
+        final String url;
+        final String etag;
+        final String lastModified;
+        // When this was last fetched or revalidated
+        final long storedAt;
+        // How long after storedAt it's fresh for
+        final long maxAgeMs;
+        // Changes only when the body does, so callers can tell whether they've seen it before
+        final long version;
+        final File body;
+
+        Entry(String url, String etag, String lastModified, long storedAt, long maxAgeMs,
+              long version, File body) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.storedAt = storedAt;
+            this.maxAgeMs = maxAgeMs;
+            this.version = version;
+            this.body = body;
+        }
+
+        long age(long now) {
+            return now - storedAt;
+        }
+    }
+
+    private final File mDir;
+    private final long mMaxBytes;
+    // Temporary files of edits which haven't been committed or aborted yet. Any others are left
+    // over from a crash.
+    private final Set<File> mEditing = new HashSet<File>();
+    // Version given to the last edit. Versions only ever go up, so two edits never share one
+    // even if they start in the same millisecond. Seeded from the clock so they don't repeat
+    // versions stored before the app was restarted.
+    private long mLastVersion;
+
+    DiskCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.e("oab", "Couldn't create HTTP cache directory");
+        }
+    }
+
+    /**
+     * Look up the response for url
+     * @return The entry, or null if there isn't one
+     */
+    synchronized Entry get(String url) {
+        String key = key(url);
+        File meta = new File(mDir, key + META_SUFFIX);
+        File body = new File(mDir, key + BODY_SUFFIX);
+        if (!meta.exists() || !body.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(meta)));
+            String storedUrl = in.readUTF();
+            if (!storedUrl.equals(url)) {
+                // Hash collision
+                return null;
+            }
+            Entry entry = new Entry(storedUrl, emptyToNull(in.readUTF()), emptyToNull(in.readUTF()),
+                    in.readLong(), in.readLong(), in.readLong(), body);
+            // For LRU eviction
+            long now = System.currentTimeMillis();
+            meta.setLastModified(now);
+            return entry;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Start writing a new body for url. Nothing changes until the returned Editor is committed.
+     */
+    synchronized Editor edit(String url) throws IOException {
+        // The system deletes the cache directory itself when it's short of space
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Couldn't create HTTP cache directory");
+        }
+        File tmp = File.createTempFile(key(url), TMP_SUFFIX, mDir);
+        mEditing.add(tmp);
+        mLastVersion = Math.max(mLastVersion + 1, System.currentTimeMillis());
+        return new Editor(url, tmp, mLastVersion);
+    }
+
+    /**
+     * Mark the entry for url as fresh again without changing its body (i.e., after a 304)
+     */
+    synchronized void refresh(Entry entry, long maxAgeMs) {
+        try {
+            writeMeta(entry.url, entry.etag, entry.lastModified, System.currentTimeMillis(), maxAgeMs,
+                    entry.version);
+        } catch (IOException e) {
+            Log.e("oab", "Couldn't refresh HTTP cache entry", e);
+        }
+    }
+
+    private synchronized void commit(String url, File tmp, String etag, String lastModified,
+                                     long maxAgeMs, long version) throws IOException {
+        mEditing.remove(tmp);
+        File body = new File(mDir, key(url) + BODY_SUFFIX);
+        if (!tmp.renameTo(body)) {
+            tmp.delete();
+            throw new IOException("Couldn't store HTTP cache entry");
+        }
+        writeMeta(url, etag, lastModified, System.currentTimeMillis(), maxAgeMs, version);
+        trim();
+    }
+
+    private synchronized void abort(File tmp) {
+        mEditing.remove(tmp);
+        tmp.delete();
+    }
+
+    private void writeMeta(String url, String etag, String lastModified, long storedAt,
+                           long maxAgeMs, long version) throws IOException {
+        File meta = new File(mDir, key(url) + META_SUFFIX);
+        File tmp = new File(mDir, key(url) + META_SUFFIX + TMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeUTF(url);
+            out.writeUTF(etag == null ? "" : etag);
+            out.writeUTF(lastModified == null ? "" : lastModified);
+            out.writeLong(storedAt);
+            out.writeLong(maxAgeMs);
+            out.writeLong(version);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(meta)) {
+            throw new IOException("Couldn't store HTTP cache metadata");
+        }
+    }
+
+    /**
+     * Delete temporary files left over from a crash, then the least recently used entries until
+     * we're under the size limit
+     */
+    private void trim() {
+        File[] metas = mDir.listFiles();
+        if (metas == null) return;
+
+        long total = 0;
+        for (File f : metas) {
+            if (f.getName().endsWith(TMP_SUFFIX) && !mEditing.contains(f)) {
+                // Metadata is written with the lock held, so any of its temporary files here are
+                // leftovers too
+                f.delete();
+                continue;
+            }
+            total += f.length();
+        }
+        if (total <= mMaxBytes) return;
+
+        metas = mDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(META_SUFFIX);
+            }
+        });
+        Arrays.sort(metas, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+            }
+        });
+        for (File meta : metas) {
+            if (total <= mMaxBytes) break;
+            String key = meta.getName().substring(0, meta.getName().length() - META_SUFFIX.length());
+            File body = new File(mDir, key + BODY_SUFFIX);
+            total -= meta.length() + body.length();
+            meta.delete();
+            body.delete();
+        }
+    }
+
+    /**
+     * Writes a new body to a temporary file, which replaces the cached one when committed
+     */
+    class Editor {
+        private final String mUrl;
+        private final File mTmp;
+        private final long mVersion;
+
+        Editor(String url, File tmp, long version) {
+            mUrl = url;
+            mTmp = tmp;
+            mVersion = version;
+        }
+
+        /**
+         * Version the entry will have once committed
+         */
+        long version() {
+            return mVersion;
+        }
+
+        OutputStream newOutputStream() throws IOException {
+            return new BufferedOutputStream(new FileOutputStream(mTmp));
+        }
+
+        void commit(String etag, String lastModified, long maxAgeMs) throws IOException {
+            DiskCache.this.commit(mUrl, mTmp, etag, lastModified, maxAgeMs, mVersion);
+        }
+
+        void abort() {
+            DiskCache.this.abort(mTmp);
+        }
+    }
+
+    /**
+     * Copies everything read from a stream into an Editor, committing it once the end of the
+     * stream is reached. If the stream is closed early the edit is thrown away.
+     *
+     * Failing to write to the cache (e.g., because the disk is full) only throws away the edit;
+     * the stream carries on passing the bytes through, since the reader doesn't need them cached.
+     */
+    static class TeeInputStream extends FilterInputStream {
+        private static final int MAX_TRAILING_BYTES = 8192;
+
+        private final Editor mEditor;
+        private final OutputStream mOut;
+        private final String mEtag;
+        private final String mLastModified;
+        private final long mMaxAgeMs;
+        private boolean mDone;
+
+        TeeInputStream(InputStream in, Editor editor, String etag, String lastModified,
+                       long maxAgeMs) throws IOException {
+            super(in);
+            mEditor = editor;
+            mOut = editor.newOutputStream();
+            mEtag = etag;
+            mLastModified = lastModified;
+            mMaxAgeMs = maxAgeMs;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                finish(true);
+            } else if (!mDone) {
+                try {
+                    mOut.write(b);
+                } catch (IOException e) {
+                    stopCaching(e);
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n == -1) {
+                finish(true);
+            } else if (!mDone) {
+                try {
+                    mOut.write(buffer, offset, n);
+                } catch (IOException e) {
+                    stopCaching(e);
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Parsers often stop at the end of the document without reading to the end of the
+            // stream, so pick up any trailing whitespace. Anything more means the caller gave up
+            // part way through, and the body isn't worth keeping.
+            if (!mDone) {
+                byte[] buffer = new byte[512];
+                int remaining = MAX_TRAILING_BYTES;
+                while (!mDone && remaining > 0 && read(buffer, 0, buffer.length) != -1) {
+                    remaining -= buffer.length;
+                }
+            }
+            finish(false);
+            super.close();
+        }
+
+        private void finish(boolean complete) {
+            if (mDone) return;
+            mDone = true;
+            try {
+                mOut.close();
+                if (complete) {
+                    mEditor.commit(mEtag, mLastModified, mMaxAgeMs);
+                } else {
+                    mEditor.abort();
+                }
+            } catch (IOException e) {
+                Log.e("oab", "Couldn't store HTTP cache entry", e);
+                mEditor.abort();
+            }
+        }
+
+        /**
+         * Throw away the edit but keep passing bytes through
+         */
+        private void stopCaching(IOException e) {
+            Log.e("oab", "Couldn't write HTTP cache entry", e);
+            mDone = true;
+            closeQuietly(mOut);
+            mEditor.abort();
+        }
+    }
+
+    private static String key(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String emptyToNull(String s) {
+        return (s.length() == 0) ? null : s;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // Nothing we can do
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.api;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.goebl.david.Request;
+import com.goebl.david.Webb;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The one HTTP client used to talk to all of our servers.
+ *
+ * POSTs go through a single shared Webb instance (see post()). Webb and our GETs both sit on
+ * HttpURLConnection, which keeps connections alive and pools them per host, so sharing the
+ * configuration here means repeated requests to openaccessbutton.org or the blog reuse the same
+ * TCP/TLS connection rather than handshaking each time.
+ *
+ * GET requests are backed by an on-disk cache.
+ *
+ * - Cached responses are served without touching the network while they're fresh
+ * - For a while after that (the stale window) they're still served straight away, but are
+ *   revalidated in the background so the next request gets the new version
+ * - After that they're revalidated with If-None-Match/If-Modified-Since before being served
+ *
+ * Responses are requested gzipped and decompressed as they're read, so parsers can work straight
+ * off the stream; the cache stores them decompressed.
+ *
+ * Every body has a version, so callers which keep the parsed result of the last response can pass
+ * that version back in and skip parsing entirely if nothing has changed.
+ */
+public class Http {
+    // Passed as knownVersion when the caller hasn't got a previous response
+    public static final long NO_VERSION = 0;
+
+    private static final long CACHE_SIZE = 10 * 1024 * 1024;
+    private static final Pattern MAX_AGE = Pattern.compile("max-age=(\\d+)");
+
+    static {
+        // The default, but make sure nothing's turned it off since it's the point of sharing
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", "5");
+    }
+
+    private static final Webb sWebb = Webb.create();
+    static {
+        // Webb decompresses gzipped responses itself
+        sWebb.setDefaultHeader(Webb.HDR_ACCEPT_ENCODING, "gzip");
+    }
+
+    // Response body bytes as received and after decompression, see stats()
+    private static final AtomicLong sWireBytes = new AtomicLong();
+    private static final AtomicLong sDecodedBytes = new AtomicLong();
+
+    private static DiskCache sCache;
+    // URLs being revalidated in the background, so we only do each once at a time
+    private static final Set<String> sRevalidating = new HashSet<String>();
+
+    /**
+     * Connect and read timeouts for each of the servers we talk to
+     */
+    public static class Timeouts {
+        // Signing in etc. The user's waiting, but they're small requests
+        public static final Timeouts API = new Timeouts(15000, 15000);
+        // Story queries return pages of hundreds of stories
+        public static final Timeouts STORIES = new Timeouts(15000, 30000);
+        public static final Timeouts BLOG = new Timeouts(15000, 10000);
+        public static final Timeouts QUESTIONS = new Timeouts(15000, 10000);
+
+        // Milliseconds
+        public final int connect;
+        public final int read;
+
+        Timeouts(int connect, int read) {
+            this.connect = connect;
+            this.read = read;
+        }
+    }
+
+    /**
+     * Result of a GET
+     */
+    public static class Response {
+        // Response body (which must be closed), or null if it's the version the caller already has
+        public final InputStream body;
+        // Version of the body, or NO_VERSION if it wasn't cached
+        public final long version;
+
+        Response(InputStream body, long version) {
+            this.body = body;
+            this.version = version;
+        }
+
+        /**
+         * Whether the body is the same as knownVersion, in which case there's nothing to parse
+         */
+        public boolean isNotModified() {
+            return body == null;
+        }
+    }
+
+    /**
+     * Thrown when the server responds with an unsuccessful status
+     */
+    public static class StatusException extends IOException {
+        public final int status;
+
+        StatusException(String url, int status) {
+            super("GET " + url + " failed: " + status);
+            this.status = status;
+        }
+    }
+
+    /**
+     * GET url, going through the cache.
+     * @param timeouts Timeouts for the server url is on
+     * @param maxAgeMs How long a response stays fresh, unless the server says otherwise
+     * @param staleMs How long after that a response can still be served while it's revalidated
+     * @param knownVersion Version of the response the caller already has, or NO_VERSION
+     * @throws IOException If the request fails
+     * @throws StatusException If the request doesn't succeed
+     */
+    public static Response get(Context context, String url, Timeouts timeouts, long maxAgeMs,
+                               long staleMs, long knownVersion) throws IOException {
+        DiskCache cache = cache(context);
+        DiskCache.Entry entry = cache.get(url);
+        if (entry != null) {
+            long age = entry.age(System.currentTimeMillis());
+            try {
+                if (age < entry.maxAgeMs) {
+                    return fromCache(entry, knownVersion);
+                }
+                if (age < entry.maxAgeMs + staleMs) {
+                    revalidateInBackground(cache, entry, timeouts, maxAgeMs);
+                    return fromCache(entry, knownVersion);
+                }
+            } catch (FileNotFoundException e) {
+                // Evicted since we looked it up
+                entry = null;
+            }
+        }
+        return fetch(cache, url, entry, timeouts, maxAgeMs, knownVersion);
+    }
+
+    /**
+     * Start a POST to url on the shared client
+     * @param timeouts Timeouts for the server url is on
+     */
+    public static Request post(String url, Timeouts timeouts) {
+        return sWebb.post(url)
+                .connectTimeout(timeouts.connect)
+                .readTimeout(timeouts.read);
+    }
+
+    /**
+     * Read the whole of a stream as UTF-8 and close it
+     */
+    public static String readString(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Response body bytes received over the network (i.e., compressed) by GETs so far
+     */
+    public static long getWireBytes() {
+        return sWireBytes.get();
+    }
+
+    /**
+     * Response body bytes received by GETs so far, after decompression
+     */
+    public static long getDecodedBytes() {
+        return sDecodedBytes.get();
+    }
+
+    /**
+     * One line summary of the counters, for logging
+     */
+    public static String stats() {
+        long wire = getWireBytes();
+        long decoded = getDecodedBytes();
+        return "received wire=" + wire + "B decoded=" + decoded + "B"
+                + ((decoded == 0) ? "" : ", saved " + (100 - wire * 100 / decoded) + "%");
+    }
+
+    private static synchronized DiskCache cache(Context context) {
+        if (sCache == null) {
+            File dir = new File(context.getApplicationContext().getCacheDir(), "http");
+            sCache = new DiskCache(dir, CACHE_SIZE);
+        }
+        return sCache;
+    }
+
+    /**
+     * Request url from the server, conditionally if we've got a cached copy
+     */
+    private static Response fetch(DiskCache cache, String url, DiskCache.Entry entry,
+                                  Timeouts timeouts, long maxAgeMs, long knownVersion)
+            throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(timeouts.connect);
+        conn.setReadTimeout(timeouts.read);
+        // Ask for gzip ourselves (rather than leaving it to HttpURLConnection) so we can count
+        // the bytes on the wire as well as the decoded ones
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        if (entry != null) {
+            if (entry.etag != null) {
+                conn.setRequestProperty("If-None-Match", entry.etag);
+            }
+            if (entry.lastModified != null) {
+                conn.setRequestProperty("If-Modified-Since", entry.lastModified);
+            }
+        }
+
+        int status = conn.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+            conn.disconnect();
+            cache.refresh(entry, maxAge(conn, maxAgeMs));
+            return fromCache(entry, knownVersion);
+        }
+        if (status < 200 || status >= 300) {
+            conn.disconnect();
+            throw new StatusException(url, status);
+        }
+
+        InputStream body = new CountingInputStream(conn.getInputStream(), sWireBytes);
+        if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+            body = new GZIPInputStream(body, 8192);
+        }
+        body = new BufferedInputStream(new CountingInputStream(body, sDecodedBytes));
+        String etag = conn.getHeaderField("ETag");
+        String lastModified = conn.getHeaderField("Last-Modified");
+        long maxAge = maxAge(conn, maxAgeMs);
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        boolean noStore = cacheControl != null && cacheControl.contains("no-store");
+        // Nothing to gain from keeping a response we can neither reuse nor revalidate
+        if (noStore || (etag == null && lastModified == null && maxAge <= 0)) {
+            return new Response(body, NO_VERSION);
+        }
+
+        // Cache the body as the caller reads it. The response is fine even if we can't, e.g.,
+        // because the system has cleared the cache directory, so then just don't cache it.
+        DiskCache.Editor editor = null;
+        try {
+            editor = cache.edit(url);
+            return new Response(new DiskCache.TeeInputStream(body, editor, etag, lastModified, maxAge),
+                    editor.version());
+        } catch (IOException e) {
+            Log.e("oab", "Couldn't cache " + url, e);
+            if (editor != null) {
+                editor.abort();
+            }
+            return new Response(body, NO_VERSION);
+        }
+    }
+
+    private static Response fromCache(DiskCache.Entry entry, long knownVersion)
+            throws FileNotFoundException {
+        if (knownVersion != NO_VERSION && entry.version == knownVersion) {
+            return new Response(null, entry.version);
+        }
+        return new Response(new BufferedInputStream(new FileInputStream(entry.body)), entry.version);
+    }
+
+    private static void revalidateInBackground(final DiskCache cache, final DiskCache.Entry entry,
+                                               final Timeouts timeouts, final long maxAgeMs) {
+        synchronized (sRevalidating) {
+            if (!sRevalidating.add(entry.url)) return;
+        }
+        NetworkExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Response response = fetch(cache, entry.url, entry, timeouts, maxAgeMs, entry.version);
+                    if (response.body != null) {
+                        // Read to the end so the new body is committed to the cache
+                        readString(response.body);
+                    }
+                } catch (IOException e) {
+                    Log.e("oab", "Couldn't revalidate " + entry.url, e);
+                } finally {
+                    synchronized (sRevalidating) {
+                        sRevalidating.remove(entry.url);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the number of bytes read through it to a counter
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong mCounter;
+
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            mCounter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCounter.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0) {
+                mCounter.addAndGet(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long n = super.skip(count);
+            mCounter.addAndGet(n);
+            return n;
+        }
+    }
+
+    /**
+     * Freshness lifetime from the response's Cache-Control header, or defaultMs if it has none
+     */
+    private static long maxAge(HttpURLConnection conn, long defaultMs) {
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        if (cacheControl == null) {
+            return defaultMs;
+        }
+        Matcher matcher = MAX_AGE.matcher(cacheControl);
+        if (matcher.find()) {
+            return Long.parseLong(matcher.group(1)) * 1000;
+        }
+        if (cacheControl.contains("no-cache")) {
+            return 0;
+        }
+        return defaultMs;
+    }
+}
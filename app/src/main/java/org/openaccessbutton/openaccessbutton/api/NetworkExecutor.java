@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.api;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * App-wide executor for network (and other blocking) work, so that repeated taps queue up on a
+ * small fixed set of threads rather than each starting a new Thread.
+ *
+ * Work is split into lanes, each with its own pool, so a slow background download can never
+ * hold up something the user is actively waiting on, and long story syncs can't hold up the
+ * short disk and network tasks behind them.
+ */
+public class NetworkExecutor {
+    public enum Priority {
+        // The user is staring at a spinner until this finishes (signing in, submitting a paywall)
+        USER_BLOCKING,
+        // Short tasks nobody's waiting on (loading and saving stores, sending queued reports,
+        // location lookups)
+        BACKGROUND,
+        // Long running transfers which page through lots of data (story syncs), limited so they
+        // can't take over every thread
+        BULK,
+        // Blog pages fetched together (e.g., on first open), limited so they don't take over
+        // every connection
+        BLOG
+    }
+
+    private static final int USER_BLOCKING_THREADS = 2;
+    private static final int BACKGROUND_THREADS = 2;
+    private static final int BULK_THREADS = 2;
+    private static final int BLOG_THREADS = 3;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor sUserBlocking = createPool("oab-net-user",
+            USER_BLOCKING_THREADS, Process.THREAD_PRIORITY_DEFAULT);
+    private static final ThreadPoolExecutor sBackground = createPool("oab-net-bg",
+            BACKGROUND_THREADS, Process.THREAD_PRIORITY_BACKGROUND);
+    private static final ThreadPoolExecutor sBulk = createPool("oab-net-bulk",
+            BULK_THREADS, Process.THREAD_PRIORITY_BACKGROUND);
+    private static final ThreadPoolExecutor sBlog = createPool("oab-net-blog",
+            BLOG_THREADS, Process.THREAD_PRIORITY_BACKGROUND);
+
+    // Counters for debugging, see stats()
+    private static final AtomicLong sStarted = new AtomicLong();
+    private static final AtomicLong sTotalWaitMs = new AtomicLong();
+    private static final AtomicLong sMaxWaitMs = new AtomicLong();
+
+    private NetworkExecutor() {}
+
+    /**
+     * Queue a task in the given lane.
+     * @return Handle which can be used to cancel the task (before or while it runs)
+     */
+    public static Future<?> submit(Priority priority, Runnable task) {
+        return pool(priority).submit(new TimedRunnable(task));
+    }
+
+    /**
+     * Queue a task with a result in the given lane.
+     * @return Handle for the result, which can also be used to cancel the task
+     */
+    public static <T> Future<T> submit(Priority priority, Callable<T> task) {
+        FutureTask<T> future = new FutureTask<T>(task);
+        pool(priority).execute(new TimedRunnable(future));
+        return future;
+    }
+
+    /**
+     * Queue a task in the background lane.
+     */
+    public static Future<?> submit(Runnable task) {
+        return submit(Priority.BACKGROUND, task);
+    }
+
+    /**
+     * Executor which queues tasks in the given lane, e.g., for AsyncTask.executeOnExecutor()
+     */
+    public static Executor executor(final Priority priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                pool(priority).execute(new TimedRunnable(task));
+            }
+        };
+    }
+
+    /**
+     * Number of tasks waiting for a thread in the given lane
+     */
+    public static int getQueueDepth(Priority priority) {
+        return pool(priority).getQueue().size();
+    }
+
+    /**
+     * Mean time (ms) tasks have spent queued before starting
+     */
+    public static long getAverageWaitMs() {
+        long started = sStarted.get();
+        return (started == 0) ? 0 : sTotalWaitMs.get() / started;
+    }
+
+    /**
+     * Longest time (ms) any task has spent queued before starting
+     */
+    public static long getMaxWaitMs() {
+        return sMaxWaitMs.get();
+    }
+
+    /**
+     * One line summary of the counters, for logging
+     */
+    public static String stats() {
+        return "queued user=" + getQueueDepth(Priority.USER_BLOCKING)
+                + " bg=" + getQueueDepth(Priority.BACKGROUND)
+                + " bulk=" + getQueueDepth(Priority.BULK)
+                + " blog=" + getQueueDepth(Priority.BLOG)
+                + ", started=" + sStarted.get()
+                + ", wait avg=" + getAverageWaitMs() + "ms max=" + getMaxWaitMs() + "ms";
+    }
+
+    private static ThreadPoolExecutor pool(Priority priority) {
+        switch (priority) {
+            case USER_BLOCKING:
+                return sUserBlocking;
+            case BULK:
+                return sBulk;
+            case BLOG:
+                return sBlog;
+            default:
+                return sBackground;
+        }
+    }
+
+    private static ThreadPoolExecutor createPool(final String name, int threads,
+                                                 final int threadPriority) {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(threadPriority);
+                        r.run();
+                    }
+                }, name + "-" + mCount.getAndIncrement());
+            }
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+        // Don't keep idle threads around while the app isn't doing anything
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Records how long a task sat in the queue before a thread picked it up
+     */
+    private static class TimedRunnable implements Runnable {
+        private final Runnable mTask;
+        private final long mQueuedAt;
+
+        TimedRunnable(Runnable task) {
+            mTask = task;
+            mQueuedAt = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void run() {
+            long waited = SystemClock.elapsedRealtime() - mQueuedAt;
+            sStarted.incrementAndGet();
+            sTotalWaitMs.addAndGet(waited);
+            long max;
+            while (waited > (max = sMaxWaitMs.get())) {
+                if (sMaxWaitMs.compareAndSet(max, waited)) break;
+            }
+            mTask.run();
+        }
+    }
+}
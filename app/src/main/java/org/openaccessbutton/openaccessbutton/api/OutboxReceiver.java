@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.api;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+
+/**
+ * Sends waiting paywall reports when we come back online or a retry is due. Only enabled while
+ * BlockedOutbox has something to send.
+ */
+public class OutboxReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
+            BlockedOutbox.onConnectivityChanged(context);
+        } else {
+            // Backoff alarm
+            BlockedOutbox.drain(context);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.api;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces identical concurrent calls: while work for a key is running, anyone else asking for
+ * the same key waits for it and gets the same result, rather than doing the work again.
+ *
+ * Results aren't kept once the work finishes; that's what the caches are for.
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, FutureTask<V>> mInFlight = new HashMap<K, FutureTask<V>>();
+
+    /**
+     * Run work for key on this thread, or wait for the call already running it
+     * @throws Exception Whatever work threw
+     */
+    public V run(K key, Callable<V> work) throws Exception {
+        FutureTask<V> task;
+        boolean leader = false;
+        synchronized (mInFlight) {
+            task = mInFlight.get(key);
+            if (task == null) {
+                task = new FutureTask<V>(work);
+                mInFlight.put(key, task);
+                leader = true;
+            }
+        }
+
+        if (leader) {
+            try {
+                task.run();
+            } finally {
+                synchronized (mInFlight) {
+                    mInFlight.remove(key);
+                }
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+}
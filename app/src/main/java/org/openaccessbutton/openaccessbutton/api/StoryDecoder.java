@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.api;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.openaccessbutton.openaccessbutton.map.Item;
+import org.openaccessbutton.openaccessbutton.map.StoryStore;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Decodes an Elasticsearch response from /query into a StoryStore one hit at a time, rather than
+ * building the whole document as a JSONObject first.
+ */
+class StoryDecoder {
+    /**
+     * Parse a page of search results.
+     * @param in Response body
+     * @param store Store to add the stories to
+     * @param out List to append Items for the newly added stories to (i.e., not including ones
+     *            which were already in the store)
+     * @return Total number of hits matching the query (across all pages)
+     * @throws IOException
+     */
+    static int decode(Reader in, StoryStore store, List<Item> out) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        int total = 0;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("hits")) {
+                    total = readHits(reader, store, out);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+        return total;
+    }
+
+    /**
+     * Parse the outer "hits" object, which has the total count and the array of hits.
+     */
+    private static int readHits(JsonReader reader, StoryStore store, List<Item> out) throws IOException {
+        int total = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("total")) {
+                total = reader.nextInt();
+            } else if (name.equals("hits")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Item item = readHit(reader, store);
+                    if (item != null) {
+                        out.add(item);
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return total;
+    }
+
+    /**
+     * Parse a single hit and add it to store.
+     * @return The story, or null if it doesn't have an id and location or is already in store
+     */
+    private static Item readHit(JsonReader reader, StoryStore store) throws IOException {
+        String id = null;
+        Double lat = null;
+        Double lng = null;
+        String story = "";
+        String doi = "";
+        String userProfession = "";
+        String url = "";
+        String accessed = "";
+        String userName = "";
+        String description = "";
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (field.equals("_id")) {
+                id = reader.nextString();
+            } else if (field.equals("fields")) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (name.equals("coords.lat")) {
+                        lat = readDouble(reader);
+                    } else if (name.equals("coords.lng")) {
+                        lng = readDouble(reader);
+                    } else if (name.equals("story")) {
+                        story = readString(reader);
+                    } else if (name.equals("doi")) {
+                        doi = readString(reader);
+                    } else if (name.equals("user_profession")) {
+                        userProfession = readString(reader);
+                    } else if (name.equals("url")) {
+                        url = readString(reader);
+                    } else if (name.equals("accessed")) {
+                        accessed = readString(reader);
+                    } else if (name.equals("user_name")) {
+                        userName = readString(reader);
+                    } else if (name.equals("description")) {
+                        description = readString(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (id == null || lat == null || lng == null) {
+            return null;
+        }
+
+        // These are to 1dp, the store spreads out ones in the same place
+        return store.add(id, lat, lng, story, doi, userProfession, url, accessed, userName, description);
+    }
+
+    /**
+     * Fields can come back either as a bare value or as a single element array depending on
+     * the Elasticsearch version, so unwrap arrays.
+     */
+    private static Double readDouble(JsonReader reader) throws IOException {
+        Double value = null;
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Double element = readDouble(reader);
+                if (value == null) value = element;
+            }
+            reader.endArray();
+        } else if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+        } else {
+            value = reader.nextDouble();
+        }
+        return value;
+    }
+
+    private static String readString(JsonReader reader) throws IOException {
+        String value = null;
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String element = readString(reader);
+                if (value == null) value = element;
+            }
+            reader.endArray();
+        } else if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+        } else {
+            value = reader.nextString();
+        }
+        return (value == null) ? "" : value;
+    }
+}
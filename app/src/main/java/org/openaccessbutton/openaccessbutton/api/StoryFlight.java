@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.api;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.openaccessbutton.openaccessbutton.R;
+import org.openaccessbutton.openaccessbutton.map.Item;
+import org.openaccessbutton.openaccessbutton.map.StoryStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * A story request being paged through, shared by everyone who asks for the same stories (same
+ * store and filter) while it's running. E.g., when MapFragment is recreated on rotation its new
+ * instance joins the request the old one started rather than starting another.
+ *
+ * Someone joining part way through only gets the pages from then on; the stories from earlier
+ * pages are already in the store.
+ */
+class StoryFlight implements Runnable {
+    // Requests in progress, by store and filter. Also guards each flight's subscribers.
+    private static final Map<String, StoryFlight> sFlights = new HashMap<String, StoryFlight>();
+
+    private final String mKey;
+    private final Context mContext;
+    private final StoryStore mStore;
+    private final String mFilter;
+    private final boolean mKeepAlive;
+    private final List<Subscriber> mSubscribers = new ArrayList<Subscriber>();
+    private Future<?> mFuture;
+    private volatile boolean mCancelled;
+
+    private static class Subscriber {
+        final ApiRequest request;
+        final API.StoryListCallback callback;
+
+        Subscriber(ApiRequest request, API.StoryListCallback callback) {
+            this.request = request;
+            this.callback = callback;
+        }
+    }
+
+    private StoryFlight(String key, Context context, StoryStore store, String filter,
+                        boolean keepAlive) {
+        mKey = key;
+        mContext = context;
+        mStore = store;
+        mFilter = filter;
+        mKeepAlive = keepAlive;
+    }
+
+    /**
+     * Join the request for these stories, starting it if it's not already running
+     * @param keepAlive Whether to carry on (filling the store) if everyone cancels
+     */
+    static ApiRequest join(Context context, StoryStore store, String filter, boolean keepAlive,
+                           API.StoryListCallback callback) {
+        String key = System.identityHashCode(store) + ":" + filter;
+        ApiRequest request = new ApiRequest();
+        final Subscriber subscriber = new Subscriber(request, callback);
+
+        final StoryFlight flight;
+        boolean start = false;
+        synchronized (sFlights) {
+            StoryFlight existing = sFlights.get(key);
+            if (existing != null && existing.mStore == store) {
+                flight = existing;
+            } else {
+                flight = new StoryFlight(key, context.getApplicationContext(), store, filter, keepAlive);
+                sFlights.put(key, flight);
+                start = true;
+            }
+            flight.mSubscribers.add(subscriber);
+        }
+
+        request.setOnCancel(new Runnable() {
+            @Override
+            public void run() {
+                flight.leave(subscriber);
+            }
+        });
+        if (start) {
+            // Its own lane, since syncing every story takes a while and shouldn't hold up short
+            // tasks like loading the blog's posts
+            Future<?> future = NetworkExecutor.submit(NetworkExecutor.Priority.BULK, flight);
+            synchronized (sFlights) {
+                flight.mFuture = future;
+                if (flight.mCancelled) {
+                    future.cancel(true);
+                }
+            }
+        }
+        return request;
+    }
+
+    @Override
+    public void run() {
+        try {
+            int from = 0;
+            int total;
+            do {
+                // Decode straight off the connection, so hits are added to the store as
+                // the bytes arrive rather than after the whole body has been buffered
+                List<Item> page = new ArrayList<Item>(API.STORY_PAGE_SIZE);
+                InputStream body = API.fetchStories(mContext, API.storyQuery(from, API.STORY_PAGE_SIZE, mFilter));
+                try {
+                    total = StoryDecoder.decode(new InputStreamReader(body, "UTF-8"), mStore, page);
+                } finally {
+                    body.close();
+                }
+                // Don't deliver anything once we've been cancelled
+                if (mCancelled) {
+                    return;
+                }
+                Item[] stories = page.toArray(new Item[page.size()]);
+                for (Subscriber subscriber : subscribers()) {
+                    if (!subscriber.request.isCancelled()) {
+                        subscriber.callback.onStories(stories);
+                    }
+                }
+
+                from += API.STORY_PAGE_SIZE;
+            } while (from < total && !mCancelled);
+
+            Log.i("oab", "Stories loaded, " + Http.stats());
+            for (final Subscriber subscriber : finish()) {
+                subscriber.request.deliverLast(new Runnable() {
+                    @Override
+                    public void run() {
+                        subscriber.callback.onComplete();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (IllegalStateException e) {
+            // Thrown by JsonReader for unexpected tokens
+            fail(e);
+        } catch (Error e) {
+            fail(e);
+        }
+    }
+
+    private void leave(Subscriber subscriber) {
+        synchronized (sFlights) {
+            mSubscribers.remove(subscriber);
+            if (!mSubscribers.isEmpty() || mKeepAlive) {
+                return;
+            }
+            // Nobody wants these stories any more
+            mCancelled = true;
+            if (sFlights.get(mKey) == this) {
+                sFlights.remove(mKey);
+            }
+            if (mFuture != null) {
+                mFuture.cancel(true);
+            }
+        }
+    }
+
+    private List<Subscriber> subscribers() {
+        synchronized (sFlights) {
+            return new ArrayList<Subscriber>(mSubscribers);
+        }
+    }
+
+    /**
+     * Stop anyone else joining, since they'd miss the end
+     * @return Everyone to tell about the result
+     */
+    private List<Subscriber> finish() {
+        synchronized (sFlights) {
+            if (sFlights.get(mKey) == this) {
+                sFlights.remove(mKey);
+            }
+            return new ArrayList<Subscriber>(mSubscribers);
+        }
+    }
+
+    private void fail(Throwable e) {
+        e.printStackTrace();
+        final String message = mContext.getResources().getString(R.string.map_error);
+        for (final Subscriber subscriber : finish()) {
+            subscriber.request.deliverLast(new Runnable() {
+                @Override
+                public void run() {
+                    subscriber.callback.onError(message);
+                }
+            });
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package org.openaccessbutton.openaccessbutton.blog;
 
-import android.app.Activity;
 import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -10,7 +9,6 @@ import android.widget.TextView;
 
 import org.openaccessbutton.openaccessbutton.R;
 
-import java.text.SimpleDateFormat;
 import java.util.List;
 
 /**
@@ -20,34 +18,53 @@ public class BlogAdapter extends ArrayAdapter<Post> {
     Context context;
     int layoutResourceId;
     List<Post> data = null;
+    private final LayoutInflater mInflater;
+
+    /**
+     * The views in a row, kept with it so they're only looked up when it's created
+     */
+    private static class ViewHolder {
+        final TextView title;
+        final TextView date;
+        final TextView author;
+        final TextView summary;
+
+        ViewHolder(View row) {
+            title = (TextView) row.findViewById(R.id.blog_title);
+            date = (TextView) row.findViewById(R.id.blog_date);
+            author = (TextView) row.findViewById(R.id.blog_author);
+            summary = (TextView) row.findViewById(R.id.blog_summary);
+        }
+    }
 
     public BlogAdapter(Context context, int layoutResourceId, List<Post> data) {
         super(context, layoutResourceId, data);
         this.layoutResourceId = layoutResourceId;
         this.context = context;
         this.data = data;
+        mInflater = LayoutInflater.from(context);
     }
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         View row = convertView;
+        ViewHolder holder;
 
         // Create a new view if one doesn't exist already
         if (row == null) {
-            LayoutInflater inflater = ((Activity) context).getLayoutInflater();
-            row = inflater.inflate(layoutResourceId, parent, false);
+            row = mInflater.inflate(layoutResourceId, parent, false);
+            holder = new ViewHolder(row);
+            row.setTag(holder);
+        } else {
+            holder = (ViewHolder) row.getTag();
         }
 
-        // Show data in the view
+        // Show data in the view. Everything's already a String, so this doesn't allocate.
         Post post = data.get(position);
-        TextView blogTitle = (TextView) row.findViewById(R.id.blog_title);
-        TextView blogDate = (TextView) row.findViewById(R.id.blog_date);
-        TextView blogAuthor = (TextView) row.findViewById(R.id.blog_author);
-        TextView blogSummary = (TextView) row.findViewById(R.id.blog_summary);
-        blogTitle.setText(post.shortTitle);
-        blogDate.setText(new SimpleDateFormat("dd/MM/yyyy").format(post.date));
-        blogAuthor.setText(post.author);
-        blogSummary.setText(post.description);
+        holder.title.setText(post.shortTitle);
+        holder.date.setText(post.displayDate);
+        holder.author.setText(post.author);
+        holder.summary.setText(post.description);
 
         return row;
     }
@@ -2,6 +2,7 @@ package org.openaccessbutton.openaccessbutton.blog;
 
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.os.Bundle;
@@ -12,11 +13,10 @@ import android.view.ViewGroup;
 import android.webkit.WebView;
 import android.widget.TextView;
 
-import com.google.gson.Gson;
-
 import org.openaccessbutton.openaccessbutton.MainActivity;
 import org.openaccessbutton.openaccessbutton.OnShareIntentInterface;
 import org.openaccessbutton.openaccessbutton.R;
+import org.openaccessbutton.openaccessbutton.api.NetworkExecutor;
 
 /**
  * A simple {@link Fragment} subclass.
@@ -25,11 +25,30 @@ import org.openaccessbutton.openaccessbutton.R;
 public class BlogDetailsFragment extends Fragment {
     Post mPost;
     OnShareIntentInterface mCallback;
+    WebView mContentView;
+    // Loading the post's body, or null
+    PostContentTask mContentTask;
+
+    // Argument holding the id of the post to show, see Post.id()
+    static final String ARG_POST_ID = "postId";
 
     public BlogDetailsFragment() {
         // Required empty public constructor
     }
 
+    /**
+     * Fragment showing post. Only the post's id goes in the arguments; the post itself is looked
+     * up in PostStore if the fragment's recreated.
+     */
+    public static BlogDetailsFragment newInstance(Post post) {
+        BlogDetailsFragment fragment = new BlogDetailsFragment();
+        Bundle args = new Bundle();
+        args.putString(ARG_POST_ID, post.id());
+        fragment.setArguments(args);
+        fragment.mPost = post;
+        return fragment;
+    }
+
     public void onAttach(Activity activity) {
         super.onAttach(activity);
 
@@ -66,24 +85,99 @@ public class BlogDetailsFragment extends Fragment {
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
-        // Post data
-        Bundle args = getArguments();
-        mPost = new Gson().fromJson(args.getString("post"), Post.class);
-
         // Inflate the layout for this fragment
         View view = inflater.inflate(R.layout.fragment_blog_details, container, false);
 
         // Set post data in view
-        WebView contentView = (WebView) view.findViewById(R.id.blog_content);
-        contentView.getSettings().setJavaScriptEnabled(true);
-        contentView.loadDataWithBaseURL("", mPost.html(), "text/html", "UTF-8", "");
+        mContentView = (WebView) view.findViewById(R.id.blog_content);
+        mContentView.getSettings().setJavaScriptEnabled(true);
         // Transparent WebView
-        contentView.setBackgroundColor(0x00000000);
-        contentView.setLayerType(WebView.LAYER_TYPE_SOFTWARE, null);
+        mContentView.setBackgroundColor(0x00000000);
+        mContentView.setLayerType(WebView.LAYER_TYPE_SOFTWARE, null);
+
+        if (mPost != null) {
+            loadContent();
+        } else {
+            findPost(getArguments().getString(ARG_POST_ID));
+        }
 
         updateShareIntent();
 
         return view;
     }
 
+    /**
+     * Look up the post in PostStore, which may need reading from disk first (e.g., if the app
+     * was killed while the post was open)
+     */
+    private void findPost(final String id) {
+        final Context context = getActivity().getApplicationContext();
+        NetworkExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final Post post = PostStore.get(context).find(id);
+                Activity activity = getActivity();
+                if (activity == null) return;
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mContentView == null) return;
+                        if (post == null) {
+                            String html = "<p>" + getString(R.string.blog_post_missing) + "</p>";
+                            mContentView.loadDataWithBaseURL("", html, "text/html", "UTF-8", "");
+                            return;
+                        }
+                        mPost = post;
+                        loadContent();
+                        updateShareIntent();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Show mPost. The list only has the post's summary, so its body is loaded now.
+     */
+    private void loadContent() {
+        Post loaded = PostContentTask.getCached(mPost);
+        if (loaded != null) {
+            showPost(loaded);
+            return;
+        }
+
+        // Show the summary in the meantime
+        showPost(mPost.withContent("<p>" + mPost.description + "</p>"));
+        mContentTask = new PostContentTask(getActivity());
+        mContentTask.execute(new PostContentTask.OnContentLoadedListener() {
+            @Override
+            public void onContentLoaded(Post post) {
+                mContentTask = null;
+                if (post != null) {
+                    mPost = post;
+                    showPost(post);
+                } else {
+                    // Leave the summary, with a link to the whole post
+                    showPost(mPost.withContent("<p>" + mPost.description + "</p>"
+                            + "<p><a href=\"" + mPost.link + "\">"
+                            + getString(R.string.blog_read_more) + "</a></p>"));
+                }
+            }
+        }, mPost);
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (mContentTask != null) {
+            mContentTask.cancel(false);
+            mContentTask = null;
+        }
+        mContentView = null;
+    }
+
+    private void showPost(Post post) {
+        mContentView.loadDataWithBaseURL("", post.html(), "text/html", "UTF-8", "");
+    }
+
 }
@@ -10,22 +10,24 @@ package org.openaccessbutton.openaccessbutton.blog;
 import android.app.Activity;
 import android.app.Fragment;
 import android.app.FragmentTransaction;
+import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
-
-import com.google.gson.Gson;
+import android.widget.TextView;
 
 import org.openaccessbutton.openaccessbutton.MainActivity;
 import org.openaccessbutton.openaccessbutton.OnFragmentNeededListener;
 import org.openaccessbutton.openaccessbutton.OnShareIntentInterface;
 import org.openaccessbutton.openaccessbutton.R;
+import org.openaccessbutton.openaccessbutton.api.NetworkExecutor;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -41,7 +43,7 @@ public class BlogFragment extends android.app.ListFragment implements AbsListVie
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        // TODO
+        // Nothing to save, since the posts are kept in PostStore
     }
 
     OnFragmentNeededListener mCallback;
@@ -50,16 +52,43 @@ public class BlogFragment extends android.app.ListFragment implements AbsListVie
     // The posts shown
     List<Post> mItems = new ArrayList<Post>();
     BlogAdapter mAdapter;
+    // Every post downloaded so far, or null until it's been read from disk
+    private PostStore mStore;
 
     // Loading spinner
     View footerView;
 
-    // For pagination
-    // TODO: Stop when we get to the end of all posts
+    // For pagination. The page after the ones shown is fetched ahead of time and kept in
+    // mNextPage until the user scrolls near the bottom, so they rarely have to wait for it.
     private int mCurrentPage = 0;
+    // Whether a page is being fetched (only one is at a time, so they're added in order)
+    private boolean mLoading = false;
+    // The fetched page waiting to be shown, or null
+    private List<Post> mNextPage;
+    // Whether the user's reached the bottom and is waiting for the page being fetched
+    private boolean mWaiting = false;
+    // Whether there are no more pages
+    private boolean mEndOfFeed = false;
+    // Number of posts on the first page, so a shorter page is known to be the last
+    private int mPageSize = 0;
+    // Whether the last fetch failed. It's only retried once the user scrolls again, rather
+    // than straight away from the relayout that hiding the spinner causes (which would spin
+    // while offline).
+    private boolean mFailed = false;
+
+    // Number of pages fetched at once when there are no stored posts
+    private static final int WARM_UP_PAGES = 3;
 
     // Number of posts above the bottom at which the threshold to load more posts is reached
     private static int sThreshold = 2;
+    // When scrolling quickly the threshold moves up so the next page is shown this long before
+    // the user would reach the bottom
+    private static final long LEAD_TIME_MS = 1000;
+
+    // For estimating how fast the user's scrolling, in posts per second
+    private int mLastFirstVisible;
+    private long mLastScrollTime;
+    private float mScrollRate;
 
     @Override
     public void onAttach(Activity activity) {
@@ -103,12 +132,170 @@ public class BlogFragment extends android.app.ListFragment implements AbsListVie
         getListView().addFooterView(footerView);
         footerView.setVisibility(View.GONE);
 
-        // TODO: Automatically determine how many posts to load
-        loadMore();
+        openStore();
+    }
+
+    /**
+     * Show the posts we've already got, then check for new ones
+     */
+    private void openStore() {
+        PostStore store = PostStore.getIfLoaded();
+        if (store != null) {
+            onStoreOpened(store);
+            return;
+        }
+
+        final Context context = getActivity().getApplicationContext();
+        NetworkExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final PostStore store = PostStore.get(context);
+                Activity activity = getActivity();
+                if (activity == null) return;
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isAdded()) {
+                            onStoreOpened(store);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void onStoreOpened(PostStore store) {
+        mStore = store;
+        showStoredPosts();
+        syncLatest();
+    }
+
+    /**
+     * Replace the posts shown with those in the store
+     */
+    private void showStoredPosts() {
+        mItems.clear();
+        mItems.addAll(mStore.posts());
+        mAdapter.notifyDataSetChanged();
+        mCurrentPage = mStore.pagesLoaded();
+        mEndOfFeed = mStore.isEndOfFeed();
+        mNextPage = null;
+    }
 
-        if (savedInstanceState != null) {
-            // TODO
+    /**
+     * Fetch the first page of the feed and add any new posts from it to the top. Older pages
+     * aren't fetched until this is done, so they follow on from the right place.
+     */
+    private void syncLatest() {
+        if (mStore.pagesLoaded() == 0) {
+            warmUp();
+            return;
+        }
+        mLoading = true;
+        if (mItems.isEmpty()) {
+            showSpinner();
         }
+        new DownloadTask(getActivity()).executeOnExecutor(NetworkExecutor.executor(NetworkExecutor.Priority.BACKGROUND), new DownloadTask.OnDownloadCompleteListener() {
+            @Override
+            public void onDownloadComplete(List<Post> items) {
+                mLoading = false;
+                if (!isAdded()) return;
+                footerView.setVisibility(View.GONE);
+
+                mPageSize = items.size();
+                if (items.isEmpty() && mStore.pagesLoaded() == 0) {
+                    // No posts at all
+                    mEndOfFeed = true;
+                    return;
+                }
+                if (mStore.mergeLatest(items)) {
+                    showStoredPosts();
+                    saveStore();
+                }
+                if (mItems.size() < mPageSize) {
+                    mEndOfFeed = true;
+                }
+                // Start fetching the next page ahead of time (or straight away if there's
+                // still room on screen)
+                if (needsMorePosts()) {
+                    loadMore();
+                } else {
+                    fetchNextPage();
+                }
+            }
+
+            @Override
+            public void onDownloadFailed() {
+                mLoading = false;
+                mFailed = true;
+                if (!isAdded()) return;
+                showFailed();
+                // We'll try to carry on from the stored posts when the user scrolls down
+            }
+        }, 1);
+    }
+
+    /**
+     * Fetch the first few pages at once, when there are no stored posts, so there's enough to
+     * scroll through without waiting for each page in turn
+     */
+    private void warmUp() {
+        mLoading = true;
+        showSpinner();
+        new DownloadTask(getActivity()).setOnPostParsedListener(new DownloadTask.OnPostParsedListener() {
+            @Override
+            public void onPostParsed(Post post) {
+                if (!isAdded()) return;
+                // Show the first page a post at a time, since there's nothing else to look at
+                mItems.add(post);
+                mAdapter.notifyDataSetChanged();
+            }
+        }).executeOnExecutor(NetworkExecutor.executor(NetworkExecutor.Priority.BACKGROUND), new DownloadTask.OnPagesDownloadedListener() {
+            @Override
+            public void onPagesDownloaded(List<List<Post>> pages) {
+                mLoading = false;
+                if (!isAdded()) return;
+                footerView.setVisibility(View.GONE);
+
+                mPageSize = pages.get(0).size();
+                for (int i=0; i<pages.size(); i++) {
+                    List<Post> page = pages.get(i);
+                    if (page.size() < mPageSize || page.isEmpty()) {
+                        mStore.setEndOfFeed();
+                    }
+                    if (page.isEmpty()) break;
+                    mStore.addPage(i + 1, page);
+                }
+                showStoredPosts();
+                saveStore();
+
+                if (needsMorePosts()) {
+                    loadMore();
+                } else {
+                    fetchNextPage();
+                }
+            }
+
+            @Override
+            public void onDownloadFailed() {
+                mLoading = false;
+                mFailed = true;
+                if (!isAdded()) return;
+                // Don't leave half a page shown, since it's not been stored
+                showStoredPosts();
+                showFailed();
+            }
+        }, 1, WARM_UP_PAGES);
+    }
+
+    private void saveStore() {
+        final PostStore store = mStore;
+        NetworkExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                store.save();
+            }
+        });
     }
 
     /**
@@ -116,60 +303,219 @@ public class BlogFragment extends android.app.ListFragment implements AbsListVie
      */
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
-        Fragment blogDetailsFragment = new BlogDetailsFragment();
+        if (position >= mItems.size()) {
+            // The footer
+            if (mFailed && !mLoading) {
+                retry();
+            }
+            return;
+        }
 
-        // Send in the post as an argument
+        // Send in the post (just its id, as an argument)
         Post post = mItems.get(position);
-        Bundle data = new Bundle();
-        data.putString("post", new Gson().toJson(post));
-        blogDetailsFragment.setArguments(data);
+        Fragment blogDetailsFragment = BlogDetailsFragment.newInstance(post);
 
         // Use the communication interface we have with the parent activity to launch the
         // fragment
-        mCallback.launchFragment(blogDetailsFragment, "blogDetailsFragment", data, true);
+        mCallback.launchFragment(blogDetailsFragment, "blogDetailsFragment",
+                blogDetailsFragment.getArguments(), true);
     }
 
     /**
-     * Load more posts
+     * Show more posts: the page fetched ahead of time if it's arrived, otherwise as soon as it
+     * does
      */
     private void loadMore() {
-        // Show loading spinner
-        footerView.setVisibility(View.VISIBLE);
+        if (mStore == null) return;
+        if (mNextPage != null) {
+            showNextPage();
+        } else if (!mEndOfFeed) {
+            mWaiting = true;
+            showSpinner();
+            fetchNextPage();
+        }
+    }
+
+    /**
+     * Start fetching the page after the ones shown, if it's not already being (or been) fetched
+     */
+    private void fetchNextPage() {
+        if (mLoading || mNextPage != null || mEndOfFeed) return;
+        mLoading = true;
+
         // Update now not after posts downloaded in case two requests fired
-        mCurrentPage++;
-        new DownloadTask().execute(new DownloadTask.OnDownloadCompleteListener() {
+        final int page = ++mCurrentPage;
+        // Posts shown as they were parsed, because the user was waiting for them
+        final List<Post> streamed = new ArrayList<Post>();
+        final boolean[] streaming = {true};
+        // Not the default serial executor, so a page already being loaded by another instance of
+        // this fragment can be shared rather than queued behind
+        new DownloadTask(getActivity()).setOnPostParsedListener(new DownloadTask.OnPostParsedListener() {
             @Override
-            public void onDownloadComplete(List<Post> items) {
-                // Add posts to List and show them
-                for (Post item : items) {
-                    mItems.add(item);
+            public void onPostParsed(Post post) {
+                if (!isAdded() || !streaming[0] || mStore.contains(post)) return;
+                if (!mWaiting) {
+                    // Can't start part way through the page, or posts would be out of order
+                    streaming[0] = false;
+                    return;
                 }
+                mItems.add(post);
+                streamed.add(post);
                 mAdapter.notifyDataSetChanged();
+            }
+        }).executeOnExecutor(NetworkExecutor.executor(NetworkExecutor.Priority.BACKGROUND), new DownloadTask.OnDownloadCompleteListener() {
+            @Override
+            public void onDownloadComplete(List<Post> items) {
+                mLoading = false;
+                if (!isAdded()) return;
+
+                if (items.isEmpty()) {
+                    mEndOfFeed = true;
+                    mStore.setEndOfFeed();
+                    saveStore();
+                    mWaiting = false;
+                    footerView.setVisibility(View.GONE);
+                    return;
+                }
+                if (page == 1) {
+                    mPageSize = items.size();
+                } else if (items.size() < mPageSize) {
+                    mEndOfFeed = true;
+                    mStore.setEndOfFeed();
+                }
+                List<Post> added = mStore.addPage(page, items);
+                saveStore();
+                added.removeAll(streamed);
+                if (added.isEmpty() && !streamed.isEmpty()) {
+                    // Already shown as it arrived
+                    mWaiting = false;
+                    footerView.setVisibility(View.GONE);
+                    fetchNextPage();
+                    return;
+                }
+                if (added.isEmpty()) {
+                    // All already shown, since pages shift along as new posts are published
+                    if (mEndOfFeed) {
+                        mWaiting = false;
+                        footerView.setVisibility(View.GONE);
+                    } else {
+                        fetchNextPage();
+                    }
+                    return;
+                }
+                mNextPage = added;
 
-                // Hide loading spinner
-                footerView.setVisibility(View.GONE);
+                // The first page is shown straight away, later ones once they're scrolled to
+                if (mWaiting || mItems.isEmpty() || needsMorePosts()) {
+                    showNextPage();
+                }
             }
-        }, mCurrentPage);
+
+            @Override
+            public void onDownloadFailed() {
+                mLoading = false;
+                mFailed = true;
+                // Try this page again next time
+                mCurrentPage--;
+                if (!isAdded()) return;
+                // Don't leave half a page shown, since it's not been stored
+                if (!streamed.isEmpty()) {
+                    mItems.removeAll(streamed);
+                    mAdapter.notifyDataSetChanged();
+                }
+                mWaiting = false;
+                showFailed();
+            }
+        }, page);
+    }
+
+    /**
+     * Show the loading spinner in the footer
+     */
+    private void showSpinner() {
+        footerView.findViewById(R.id.progressBar1).setVisibility(View.VISIBLE);
+        ((TextView) footerView.findViewById(R.id.footer_text)).setText(R.string.loading_text);
+        footerView.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Hide the loading spinner after a fetch fails. If there's nothing shown the list can't be
+     * scrolled to try again, so the footer offers a tap to retry instead.
+     */
+    private void showFailed() {
+        if (!mItems.isEmpty()) {
+            footerView.setVisibility(View.GONE);
+            return;
+        }
+        footerView.findViewById(R.id.progressBar1).setVisibility(View.GONE);
+        ((TextView) footerView.findViewById(R.id.footer_text)).setText(R.string.blog_retry);
+        footerView.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Start again from the first page after a fetch failed
+     */
+    private void retry() {
+        mFailed = false;
+        syncLatest();
+    }
+
+    /**
+     * Add the page fetched ahead of time to the list, and start fetching the one after it
+     */
+    private void showNextPage() {
+        // Add posts to List and show them
+        mItems.addAll(mNextPage);
+        mAdapter.notifyDataSetChanged();
+        mNextPage = null;
+        mWaiting = false;
+
+        // Hide loading spinner
+        footerView.setVisibility(View.GONE);
+
+        fetchNextPage();
     }
 
     @Override
     public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
-                         int totalItemCount) {}
+                         int totalItemCount) {
+        long now = SystemClock.uptimeMillis();
+        if (firstVisibleItem != mLastFirstVisible) {
+            long elapsed = now - mLastScrollTime;
+            if (elapsed > 0) {
+                float rate = (firstVisibleItem - mLastFirstVisible) * 1000f / elapsed;
+                // Smooth it out, since rows scroll past in uneven steps
+                mScrollRate = (mScrollRate + rate) / 2;
+            }
+            mLastFirstVisible = firstVisibleItem;
+            mLastScrollTime = now;
+        }
+
+        if (footerView != null && !mItems.isEmpty() && !mFailed && needsMorePosts()) {
+            loadMore();
+        }
+    }
 
     @Override
     public void onScrollStateChanged(AbsListView listView, int scrollState) {
+        if (scrollState == SCROLL_STATE_TOUCH_SCROLL) {
+            // The user's scrolling, so it's worth trying again
+            mFailed = false;
+        }
         // Once scrolling has stopped
         if (scrollState == SCROLL_STATE_IDLE) {
+            mScrollRate = 0;
             if (needsMorePosts()) { loadMore(); }
         }
     }
 
     /**
-     * Whether more posts should be loaded (based on how far user has scrolled)
+     * Whether more posts should be shown (based on how far, and how fast, user has scrolled)
      */
     private boolean needsMorePosts() {
         AbsListView listView = getListView();
-        return listView.getLastVisiblePosition() >= listView.getCount() - 1 - sThreshold;
+        int threshold = Math.max(sThreshold, (int) (mScrollRate * LEAD_TIME_MS / 1000));
+        return listView.getLastVisiblePosition() >= listView.getCount() - 1 - threshold;
     }
 
     public Intent onShareButtonPressed(Resources resources) {
@@ -191,5 +537,9 @@ public class BlogFragment extends android.app.ListFragment implements AbsListVie
     public void onResume() {
         super.onResume();
         updateShareIntent();
+        // Nothing to scroll, so scrolling can't trigger a retry
+        if (mStore != null && mFailed && !mLoading && mItems.isEmpty()) {
+            retry();
+        }
     }
 }
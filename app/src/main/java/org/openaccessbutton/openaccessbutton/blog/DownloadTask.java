@@ -5,93 +5,265 @@ package org.openaccessbutton.openaccessbutton.blog;/*
  * of the MIT license.  See the LICENSE file for details.
  */
 
+import android.content.Context;
 import android.os.AsyncTask;
+import android.util.Log;
+import android.util.LruCache;
 
+import org.openaccessbutton.openaccessbutton.api.Http;
+import org.openaccessbutton.openaccessbutton.api.NetworkExecutor;
+import org.openaccessbutton.openaccessbutton.api.SingleFlight;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Downloads (asynchronously) blog posts and calls a listener function with a List of parsed
  * Posts. Downloading XML based on the examples given in the Android documentation at
  * http://developer.android.com/training/basics/network-ops/xml.html.
  *
- * parameters: listener, page number
+ * parameters: listener, page number[, number of pages]
+ *
+ * Asking for more than one page (e.g., to fill the list on first open) fetches and parses them
+ * all at once, and the listener has to be an OnPagesDownloadedListener.
  */
-public class DownloadTask extends AsyncTask<Object, Void, List<Post>> {
+public class DownloadTask extends AsyncTask<Object, Post, List<List<Post>>> {
     /**
      * Called with the List of Posts when the download is finished
      */
     public interface OnDownloadCompleteListener {
+        // An empty List means the page is past the end of the feed
         void onDownloadComplete(List<Post> posts);
+        void onDownloadFailed();
+    }
+
+    /**
+     * Called with each page's Posts, in page order, when a download of several pages is finished
+     */
+    public interface OnPagesDownloadedListener {
+        // If the end of the feed was reached the last page is empty. If a page failed, only the
+        // pages before it are included.
+        void onPagesDownloaded(List<List<Post>> pages);
+        void onDownloadFailed();
+    }
+
+    /**
+     * Called with each post on the (first) page as soon as it's been parsed, before the whole
+     * page is passed to the other listener. Posts aren't passed to this if the page didn't need
+     * parsing, e.g., because it's the same as last time.
+     */
+    public interface OnPostParsedListener {
+        void onPostParsed(Post post);
     }
     OnDownloadCompleteListener mListener;
+    OnPagesDownloadedListener mPagesListener;
+    private OnPostParsedListener mPostListener;
 
     /**
      * Blog feed URL
      */
     public static String BLOG_URL = "http://blog.openaccessbutton.org/feed/";
 
+    // Posts don't change often, so pages are served from the cache for a while and then used
+    // while they're revalidated in the background for a day after that
+    private static final long MAX_AGE_MS = 5 * 60 * 1000;
+    private static final long STALE_MS = 24 * 60 * 60 * 1000;
+
+    // Recently parsed pages, so a page which hasn't changed doesn't need parsing again
+    private static final LruCache<String, ParsedPage> sParsedPages = new LruCache<String, ParsedPage>(5);
+
+    // Page loads in progress, by URL
+    private static final SingleFlight<String, List<Post>> sPageLoads = new SingleFlight<String, List<Post>>();
+
+    private static class ParsedPage {
+        final long version;
+        final List<Post> posts;
+
+        ParsedPage(long version, List<Post> posts) {
+            this.version = version;
+            this.posts = posts;
+        }
+    }
+
+    private final Context mContext;
+
+    public DownloadTask(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Show posts as they're parsed, see OnPostParsedListener. Must be called before execute().
+     */
+    public DownloadTask setOnPostParsedListener(OnPostParsedListener listener) {
+        mPostListener = listener;
+        return this;
+    }
+
     @Override
-    protected List<Post> doInBackground(Object... params) {
+    protected List<List<Post>> doInBackground(Object... params) {
         // Extract the parameters
-        mListener = (OnDownloadCompleteListener) params[0];
+        if (params[0] instanceof OnPagesDownloadedListener) {
+            mPagesListener = (OnPagesDownloadedListener) params[0];
+        } else {
+            mListener = (OnDownloadCompleteListener) params[0];
+        }
         int pageNumber = (Integer) params[1];
+        int pageCount = (params.length > 2) ? (Integer) params[2] : 1;
+
+        if (pageCount == 1) {
+            List<Post> posts = loadPage(pageNumber, true);
+            return (posts == null) ? null : Collections.singletonList(posts);
+        }
 
+        // Fetch and parse the pages in parallel (as many at once as the blog lane allows), then
+        // put them back in order. Callers run this task outside the blog lane, so it never waits
+        // for a thread it's holding itself.
+        List<Future<List<Post>>> futures = new ArrayList<Future<List<Post>>>(pageCount);
+        for (int i=0; i<pageCount; i++) {
+            final int page = pageNumber + i;
+            // Only the first page's posts are passed on as they're parsed, since they're the
+            // ones which can be shown straight away
+            final boolean first = (i == 0);
+            futures.add(NetworkExecutor.submit(NetworkExecutor.Priority.BLOG, new Callable<List<Post>>() {
+                @Override
+                public List<Post> call() {
+                    return loadPage(page, first);
+                }
+            }));
+        }
+        List<List<Post>> pages = new ArrayList<List<Post>>(pageCount);
+        for (Future<List<Post>> future : futures) {
+            List<Post> posts;
+            try {
+                posts = future.get();
+            } catch (InterruptedException e) {
+                posts = null;
+            } catch (ExecutionException e) {
+                posts = null;
+            }
+            if (posts == null) {
+                break;
+            }
+            pages.add(posts);
+            if (posts.isEmpty()) {
+                // End of the feed, so the later pages will all be empty too
+                break;
+            }
+        }
+        for (Future<List<Post>> future : futures) {
+            // Not interrupted, since another task may be sharing the page
+            future.cancel(false);
+        }
+        return pages.isEmpty() ? null : pages;
+    }
+
+    @Override
+    protected void onProgressUpdate(Post... posts) {
+        for (Post post : posts) {
+            mPostListener.onPostParsed(post);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(List<List<Post>> pages) {
+        // Call the listener
+        if (mPagesListener != null) {
+            if (pages == null) {
+                mPagesListener.onDownloadFailed();
+            } else {
+                mPagesListener.onPagesDownloaded(pages);
+            }
+        } else if (pages == null) {
+            mListener.onDownloadFailed();
+        } else {
+            mListener.onDownloadComplete(pages.get(0));
+        }
+    }
+
+    /**
+     * Fetch and parse a page
+     * @param stream Whether to pass the posts to mPostListener as they're parsed
+     * @return The page's Posts (empty if it's past the end of the feed), or null if it couldn't
+     * be loaded
+     */
+    private List<Post> loadPage(int pageNumber, boolean stream) {
         // Create url
         // e.g., /feed/?paged=2
-        String url = BLOG_URL + "?paged=" + Integer.toString(pageNumber);
+        final String url = BLOG_URL + "?paged=" + Integer.toString(pageNumber);
+        final RssParser.OnPostListener postListener;
+        if (stream && mPostListener != null) {
+            postListener = new RssParser.OnPostListener() {
+                @Override
+                public void onPost(Post post) {
+                    // Safe from the page threads too, it only posts a message to the main thread
+                    publishProgress(post);
+                }
+            };
+        } else {
+            postListener = null;
+        }
 
         try {
-            return loadPostsFromNetwork(url);
-        } catch (IOException e) {
+            // If the same page is already being loaded (e.g., the fragment was recreated while
+            // loading it) then wait for that rather than fetching it twice
+            List<Post> posts = sPageLoads.run(url, new Callable<List<Post>>() {
+                @Override
+                public List<Post> call() throws Exception {
+                    return loadPostsFromNetwork(url, postListener);
+                }
+            });
+            // Each caller gets its own List since they add to it
+            return new ArrayList<Post>(posts);
+        } catch (Http.StatusException e) {
+            if (e.status == HttpURLConnection.HTTP_NOT_FOUND) {
+                // WordPress 404s pages after the last one
+                return new ArrayList<Post>();
+            }
             // TODO: Show UI messages for these errors
-            return new ArrayList<Post>();
+            return null;
+        } catch (IOException e) {
+            return null;
         } catch (XmlPullParserException e) {
-            return new ArrayList<Post>();
+            return null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
         }
     }
 
-    @Override
-    protected void onPostExecute(List<Post> posts) {
-        // Call the listener
-        mListener.onDownloadComplete(posts);
-    }
+    private List<Post> loadPostsFromNetwork(String urlString, RssParser.OnPostListener postListener)
+            throws XmlPullParserException, IOException {
+        ParsedPage parsed = sParsedPages.get(urlString);
+        long knownVersion = (parsed == null) ? Http.NO_VERSION : parsed.version;
 
-    private List<Post> loadPostsFromNetwork(String urlString) throws XmlPullParserException,
-            IOException {
-        InputStream stream = null;
-        RssParser rssParser = new RssParser();
-        List<Post> posts = null;
+        Http.Response response = Http.get(mContext, urlString, Http.Timeouts.BLOG, MAX_AGE_MS,
+                STALE_MS, knownVersion);
+        if (response.isNotModified()) {
+            return parsed.posts;
+        }
 
-        // Download and parse
+        // Download and parse. The list only shows summaries, so skip the post bodies; they're
+        // loaded by PostContentTask when a post's opened.
+        RssParser rssParser = new RssParser(true);
+        List<Post> posts;
         try {
-            stream = downloadUrl(urlString);
-            posts = rssParser.parse(stream);
+            posts = rssParser.parse(response.body, postListener);
         // Make sure input stream is closed
         } finally {
-            if (stream != null) {
-                stream.close();
-            }
+            response.body.close();
         }
 
+        Log.i("oab", "Blog page loaded, " + Http.stats());
+        if (response.version != Http.NO_VERSION) {
+            sParsedPages.put(urlString, new ParsedPage(response.version, posts));
+        }
         return posts;
     }
-
-    private InputStream downloadUrl(String urlString) throws IOException {
-        URL url = new URL(urlString);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setReadTimeout(10000 /* milliseconds */);
-        conn.setConnectTimeout(15000 /* milliseconds */);
-        conn.setRequestMethod("GET");
-        conn.setDoInput(true);
-        conn.connect();
-
-        return conn.getInputStream();
-    }
 }
@@ -9,6 +9,7 @@ package org.openaccessbutton.openaccessbutton.blog;
 
 import org.apache.commons.lang3.StringUtils;
 
+import java.text.SimpleDateFormat;
 import java.util.Date;
 
 /**
@@ -19,16 +20,34 @@ public class Post {
     public final String shortTitle;
     public final String description;
     public final Date date;
+    // date as shown in the list, formatted once here rather than every time a row is drawn
+    public final String displayDate;
     public final String author;
+    // HTML body, or null if only the summary has been loaded (see PostContentTask)
     public final String content;
     public final String link;
 
     private static final int SHORT_TITLE_LENGTH = 100;
 
+    // Posts are created on the parsing threads, and SimpleDateFormat isn't thread safe
+    private static final ThreadLocal<SimpleDateFormat> sDateFormat = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("dd/MM/yyyy");
+        }
+    };
+
     public Post(String title, String description, Date date, String author, String content, String link) {
+        this(title, description, date, (date == null) ? "" : sDateFormat.get().format(date),
+                author, content, link);
+    }
+
+    private Post(String title, String description, Date date, String displayDate, String author,
+                 String content, String link) {
         this.title = title;
         this.description = description;
         this.date = date;
+        this.displayDate = displayDate;
         this.author = author;
         this.content = content;
         this.link = link;
@@ -36,6 +55,21 @@ public class Post {
         this.shortTitle = StringUtils.abbreviate(title, SHORT_TITLE_LENGTH);
     }
 
+    /**
+     * Stable id for the post, by which it's kept in PostStore. Posts without a link (which
+     * shouldn't happen) fall back to their title.
+     */
+    public String id() {
+        return (link != null) ? link : title;
+    }
+
+    /**
+     * This post with its body filled in
+     */
+    public Post withContent(String content) {
+        return new Post(title, description, date, displayDate, author, content, link);
+    }
+
     @Override
     /**
      * Shows the title + description as a simple textual representation of the post
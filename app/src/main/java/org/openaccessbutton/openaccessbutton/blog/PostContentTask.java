@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.blog;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.LruCache;
+
+import org.openaccessbutton.openaccessbutton.api.Http;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Loads (asynchronously) the body of a post, since the list of posts only loads their summaries,
+ * and calls a listener with the post including its content.
+ *
+ * The body comes from the post's own feed (WordPress serves the post itself, rather than its
+ * comments, at <link>feed/?withoutcomments=1), so it's parsed by RssParser the same way as the
+ * main feed.
+ *
+ * parameters: listener, post
+ */
+public class PostContentTask extends AsyncTask<Object, Void, Post> {
+    /**
+     * Called with the post, including its content, or null if it couldn't be loaded
+     */
+    public interface OnContentLoadedListener {
+        void onContentLoaded(Post post);
+    }
+    OnContentLoadedListener mListener;
+
+    // Posts are rarely edited once they're published
+    private static final long MAX_AGE_MS = 60 * 60 * 1000;
+    private static final long STALE_MS = 7 * 24 * 60 * 60 * 1000;
+
+    // Bodies of recently opened posts by link, sized in characters
+    private static final LruCache<String, String> sContents = new LruCache<String, String>(512 * 1024) {
+        @Override
+        protected int sizeOf(String link, String content) {
+            return content.length();
+        }
+    };
+
+    private final Context mContext;
+
+    public PostContentTask(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * The post with its body, if it's already been loaded, otherwise null. Doesn't block, so
+     * can be used to avoid starting a task at all.
+     */
+    public static Post getCached(Post post) {
+        if (post.content != null) {
+            return post;
+        }
+        String content = (post.link == null) ? null : sContents.get(post.link);
+        return (content == null) ? null : post.withContent(content);
+    }
+
+    @Override
+    protected Post doInBackground(Object... params) {
+        // Extract the parameters
+        mListener = (OnContentLoadedListener) params[0];
+        Post post = (Post) params[1];
+
+        Post cached = getCached(post);
+        if (cached != null) {
+            return cached;
+        }
+        if (post.link == null) {
+            return null;
+        }
+
+        try {
+            String content = loadContentFromNetwork(post.link);
+            if (content == null) {
+                return null;
+            }
+            sContents.put(post.link, content);
+            return post.withContent(content);
+        } catch (IOException e) {
+            return null;
+        } catch (XmlPullParserException e) {
+            return null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    protected void onPostExecute(Post post) {
+        // Call the listener
+        mListener.onContentLoaded(post);
+    }
+
+    private String loadContentFromNetwork(String link) throws XmlPullParserException,
+            IOException {
+        String url = link + (link.endsWith("/") ? "" : "/") + "feed/?withoutcomments=1";
+        Http.Response response = Http.get(mContext, url, Http.Timeouts.BLOG, MAX_AGE_MS,
+                STALE_MS, Http.NO_VERSION);
+
+        List<Post> posts;
+        try {
+            posts = new RssParser().parse(response.body);
+        // Make sure input stream is closed
+        } finally {
+            response.body.close();
+        }
+        return (posts == null || posts.isEmpty()) ? null : posts.get(0).content;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.blog;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every blog post downloaded so far, newest first, kept on disk so the blog can be shown as soon
+ * as it's opened rather than after the feed has been downloaded again.
+ *
+ * Posts are keyed by their id, i.e., their link, and can be looked up by it. Keeping up to date
+ * only needs the first page of the feed: its posts are added until one we've already got is
+ * reached.
+ *
+ * get() and save() do disk IO so shouldn't be called on the UI thread.
+ */
+public class PostStore {
+    private static final String FILENAME = "posts.bin";
+    // Bump this whenever the file format changes; older files are then ignored
+    private static final int VERSION = 1;
+
+    private static PostStore sInstance;
+
+    private final File mFile;
+    private final List<Post> mPosts = new ArrayList<Post>();
+    private final Map<String, Post> mById = new HashMap<String, Post>();
+    // Number of feed pages the posts cover
+    private int mPagesLoaded;
+    // Whether the posts go all the way back to the start of the blog
+    private boolean mEndOfFeed;
+    // Stops two saves writing the temporary file at once
+    private final Object mSaveLock = new Object();
+
+    private PostStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * The store, read from disk the first time
+     */
+    public static synchronized PostStore get(Context context) {
+        if (sInstance == null) {
+            sInstance = new PostStore(new File(context.getFilesDir(), FILENAME));
+            sInstance.load();
+        }
+        return sInstance;
+    }
+
+    /**
+     * The store if it's already been read from disk, otherwise null
+     */
+    public static synchronized PostStore getIfLoaded() {
+        return sInstance;
+    }
+
+    public synchronized List<Post> posts() {
+        return new ArrayList<Post>(mPosts);
+    }
+
+    /**
+     * The post with the given id (see Post.id()), or null if it's not here
+     */
+    public synchronized Post find(String id) {
+        return mById.get(id);
+    }
+
+    public synchronized boolean contains(Post post) {
+        return mById.containsKey(post.id());
+    }
+
+    public synchronized int pagesLoaded() {
+        return mPagesLoaded;
+    }
+
+    public synchronized boolean isEndOfFeed() {
+        return mEndOfFeed;
+    }
+
+    public synchronized void setEndOfFeed() {
+        mEndOfFeed = true;
+    }
+
+    /**
+     * Add the new posts from the first page of the feed
+     * @return Whether anything changed
+     */
+    public synchronized boolean mergeLatest(List<Post> firstPage) {
+        if (firstPage.isEmpty()) return false;
+
+        List<Post> fresh = new ArrayList<Post>();
+        boolean joined = false;
+        for (Post post : firstPage) {
+            if (mById.containsKey(post.id())) {
+                joined = true;
+                break;
+            }
+            fresh.add(post);
+        }
+
+        if (!joined && !mPosts.isEmpty()) {
+            // More than a page of new posts, so there'd be a gap between them and the ones we've
+            // got. Start again from this page.
+            mPosts.clear();
+            mById.clear();
+            mPagesLoaded = 0;
+            mEndOfFeed = false;
+        }
+        if (fresh.isEmpty()) return false;
+
+        mPosts.addAll(0, fresh);
+        for (Post post : fresh) {
+            mById.put(post.id(), post);
+        }
+        mPagesLoaded = Math.max(mPagesLoaded, 1);
+        return true;
+    }
+
+    /**
+     * Add an older page of the feed. Pages shift along as new posts are published, so some of
+     * its posts may already be here.
+     * @return The posts which weren't, in order
+     */
+    public synchronized List<Post> addPage(int page, List<Post> posts) {
+        List<Post> added = new ArrayList<Post>();
+        for (Post post : posts) {
+            String key = post.id();
+            if (!mById.containsKey(key)) {
+                mById.put(key, post);
+                mPosts.add(post);
+                added.add(post);
+            }
+        }
+        mPagesLoaded = Math.max(mPagesLoaded, page);
+        return added;
+    }
+
+    /**
+     * Write the posts to disk
+     */
+    public void save() {
+        List<Post> posts;
+        int pagesLoaded;
+        boolean endOfFeed;
+        synchronized (this) {
+            posts = new ArrayList<Post>(mPosts);
+            pagesLoaded = mPagesLoaded;
+            endOfFeed = mEndOfFeed;
+        }
+
+        synchronized (mSaveLock) {
+            // Write to a temporary file and then swap it in, so a crash halfway through doesn't
+            // leave us with a truncated file
+            File tmp = new File(mFile.getPath() + ".tmp");
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                out.writeInt(VERSION);
+                out.writeInt(pagesLoaded);
+                out.writeBoolean(endOfFeed);
+                out.writeInt(posts.size());
+                for (Post post : posts) {
+                    writeString(out, post.title);
+                    writeString(out, post.description);
+                    out.writeLong(post.date == null ? Long.MIN_VALUE : post.date.getTime());
+                    writeString(out, post.author);
+                    // Always null now the list only loads summaries, but kept so older
+                    // files can still be read
+                    writeString(out, post.content);
+                    writeString(out, post.link);
+                }
+                out.close();
+                out = null;
+
+                if (!tmp.renameTo(mFile)) {
+                    Log.e("oab", "Couldn't replace saved posts");
+                }
+            } catch (IOException e) {
+                Log.e("oab", "Couldn't save posts", e);
+            } finally {
+                closeQuietly(out);
+            }
+        }
+    }
+
+    private void load() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != VERSION) return;
+            int pagesLoaded = in.readInt();
+            boolean endOfFeed = in.readBoolean();
+            int count = in.readInt();
+            List<Post> posts = new ArrayList<Post>(count);
+            for (int i=0; i<count; i++) {
+                String title = readString(in);
+                String description = readString(in);
+                long time = in.readLong();
+                String author = readString(in);
+                // Files from before the list only loaded summaries have the bodies, which
+                // aren't needed here
+                skipString(in);
+                String link = readString(in);
+                posts.add(new Post(title, description,
+                        (time == Long.MIN_VALUE) ? null : new Date(time), author, null, link));
+            }
+
+            addPage(pagesLoaded, posts);
+            mEndOfFeed = endOfFeed;
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet
+        } catch (IOException e) {
+            Log.e("oab", "Couldn't read saved posts", e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // Not writeUTF(), since post content can be longer than the 64KB that allows
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void skipString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length > 0 && in.skipBytes(length) < length) {
+            throw new EOFException();
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // Nothing we can do
+        }
+    }
+}
@@ -14,21 +14,85 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 /**
  * Parse the blog RSS (XML) feed into a List of Posts.
  * Based on the examples given in the Android documentation at
  * http://developer.android.com/training/basics/network-ops/xml.html.
+ *
+ * A page has a few dozen tags per post, so as little as possible is allocated per tag: tag names
+ * are looked up once in a table rather than compared against each name in turn, the regexes are
+ * compiled once, and each thread reuses one date parser.
  */
 public class RssParser {
     // Namespaces aren't needed at this point
     private static final String ns = null;
 
+    // Post properties, see sTags
+    private static final int TAG_OTHER = 0;
+    private static final int TAG_TITLE = 1;
+    private static final int TAG_DESCRIPTION = 2;
+    private static final int TAG_DATE = 3;
+    private static final int TAG_CREATOR = 4;
+    private static final int TAG_CONTENT = 5;
+    private static final int TAG_LINK = 6;
+
+    private static final Map<String, Integer> sTags = new HashMap<String, Integer>();
+    static {
+        sTags.put("title", TAG_TITLE);
+        sTags.put("description", TAG_DESCRIPTION);
+        sTags.put("pubDate", TAG_DATE);
+        sTags.put("dc:creator", TAG_CREATOR);
+        sTags.put("content:encoded", TAG_CONTENT);
+        sTags.put("link", TAG_LINK);
+    }
+
+    // Descriptions end in " [...]" (but with unicode ellipses) and then a 1x1px image so we
+    // remove those
+    private static final Pattern DESCRIPTION_TRAILER = Pattern.compile("(?m) \\[\u2026\\]<img.*/>$");
+    // As does content, without the ellipsis
+    private static final Pattern CONTENT_TRAILER = Pattern.compile("<img.*/>$");
+
+    // Whether to skip post content, see RssParser(boolean)
+    private final boolean mSummaryOnly;
+
+    // SimpleDateFormat isn't thread safe (and pages are parsed in parallel), so one per thread
+    private static final ThreadLocal<SimpleDateFormat> sDateParser = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss ZZZZZ", Locale.ENGLISH);
+        }
+    };
+
+    public RssParser() {
+        this(false);
+    }
+
+    /**
+     * @param summaryOnly Whether to skip past each post's content (which is most of the feed)
+     * rather than reading it, e.g., for the list of posts, which only needs the summary. Posts
+     * then have null content.
+     */
+    public RssParser(boolean summaryOnly) {
+        mSummaryOnly = summaryOnly;
+    }
+
+    /**
+     * Called with each post as soon as it's been parsed
+     */
+    public interface OnPostListener {
+        void onPost(Post post);
+    }
+
     /**
      * Parse an InputStream containing the RSS feed.
      * @param in InputStream containing blog RSS feed
@@ -37,12 +101,23 @@ public class RssParser {
      * @throws IOException
      */
     public List<Post> parse(InputStream in) throws XmlPullParserException, IOException {
+        return parse(in, null);
+    }
+
+    /**
+     * Parse an InputStream containing the RSS feed, passing each post to listener as soon as its
+     * </item> is reached rather than waiting for the whole feed.
+     * @param listener Listener for each post, or null
+     * @return List of Posts
+     */
+    public List<Post> parse(InputStream in, OnPostListener listener)
+            throws XmlPullParserException, IOException {
         try {
             XmlPullParser parser = Xml.newPullParser();
             parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
             parser.setInput(in, null);
             parser.nextTag();
-            return readFeed(parser);
+            return readFeed(parser, listener);
         } finally {
             in.close();
         }
@@ -51,18 +126,17 @@ public class RssParser {
     /**
      * Parse the entire feed.
      */
-    private List<Post> readFeed(XmlPullParser parser) throws XmlPullParserException, IOException {
+    private List<Post> readFeed(XmlPullParser parser, OnPostListener listener) throws XmlPullParserException, IOException {
         // Everything's contained in an <rss> tag
         parser.require(XmlPullParser.START_TAG, ns, "rss");
         while (parser.next() != XmlPullParser.END_TAG) {
             if (parser.getEventType() != XmlPullParser.START_TAG) {
                 continue;
             }
-            String name = parser.getName();
             // All posts are contained in a parent <channel> tag
-            if (name.equals("channel")) {
+            if ("channel".equals(parser.getName())) {
                 // There's only one channel, so we can simply return Posts from the first channel
-                return readChannel(parser);
+                return readChannel(parser, listener);
             } else {
                 skip(parser);
             }
@@ -73,19 +147,22 @@ public class RssParser {
     /**
      * Parse a <channel> tag.
      */
-    private List<Post> readChannel(XmlPullParser parser) throws XmlPullParserException, IOException {
+    private List<Post> readChannel(XmlPullParser parser, OnPostListener listener)
+            throws XmlPullParserException, IOException {
         // To store parsed posts in
         List<Post> posts = new ArrayList<Post>();
 
-        parser.require(XmlPullParser.START_TAG, ns, "channel");
         while (parser.next() != XmlPullParser.END_TAG) {
             if (parser.getEventType() != XmlPullParser.START_TAG) {
                 continue;
             }
-            String name = parser.getName();
             // Posts are <item> tags
-            if (name.equals("item")) {
-                posts.add(readPost(parser));
+            if ("item".equals(parser.getName())) {
+                Post post = readPost(parser);
+                posts.add(post);
+                if (listener != null) {
+                    listener.onPost(post);
+                }
             } else {
                 skip(parser);
             }
@@ -95,11 +172,9 @@ public class RssParser {
     }
 
     /**
-     * Parse an individual post from a <post> tag.
+     * Parse an individual post from an <item> tag.
      */
     private Post readPost(XmlPullParser parser) throws XmlPullParserException, IOException {
-        parser.require(XmlPullParser.START_TAG, ns, "item");
-
         // Post properties
         String title = null;
         String description = null;
@@ -112,22 +187,34 @@ public class RssParser {
             if (parser.getEventType() != XmlPullParser.START_TAG) {
                 continue;
             }
-            String name = parser.getName();
+            Integer tag = sTags.get(parser.getName());
             // Read post properties
-            if (name.equals("title")) {
-                title = readTitle(parser);
-            } else if (name.equals("description")) {
-                description = readDescription(parser);
-            } else if (name.equals("pubDate")) {
-                date = readDate(parser);
-            } else if (name.equals("dc:creator")) {
-                creator = readCreator(parser);
-            } else if (name.equals("content:encoded")) {
-                content = readContent(parser);
-            } else if (name.equals("link")) {
-                link = readLink(parser);
-            } else {
-                skip(parser);
+            switch (tag == null ? TAG_OTHER : tag) {
+                case TAG_TITLE:
+                    title = readText(parser);
+                    break;
+                case TAG_DESCRIPTION:
+                    description = DESCRIPTION_TRAILER.matcher(readText(parser)).replaceAll("") + "...";
+                    break;
+                case TAG_DATE:
+                    date = readDate(parser);
+                    break;
+                case TAG_CREATOR:
+                    creator = readText(parser);
+                    break;
+                case TAG_CONTENT:
+                    if (mSummaryOnly) {
+                        skip(parser);
+                    } else {
+                        content = CONTENT_TRAILER.matcher(readText(parser)).replaceAll("");
+                    }
+                    break;
+                case TAG_LINK:
+                    link = readText(parser);
+                    break;
+                default:
+                    skip(parser);
+                    break;
             }
         }
         return new Post(title, description, date, creator, content, link);
@@ -151,78 +238,19 @@ public class RssParser {
     }
 
     /**
-     * Extract text from a <title> tag
-     */
-    private String readTitle(XmlPullParser parser) throws IOException, XmlPullParserException {
-        parser.require(XmlPullParser.START_TAG, ns, "title");
-        String title = readText(parser);
-        parser.require(XmlPullParser.END_TAG, ns, "title");
-        return title;
-    }
-
-    /**
-     * Extract text from a <pubDate> tag
+     * Extract the date from a <pubDate> tag
      */
     private Date readDate(XmlPullParser parser) throws IOException, XmlPullParserException {
-        parser.require(XmlPullParser.START_TAG, ns, "pubDate");
-
         String dateString = readText(parser);
-        SimpleDateFormat dateParser = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss ZZZZZ", Locale.ENGLISH);
-        Date date = null;
-
         try {
-            date = dateParser.parse(dateString);
-        } catch (Exception e) {
+            return sDateParser.get().parse(dateString);
+        } catch (ParseException e) {
+            return null;
         }
-
-        return date;
-    }
-    /**
-     * Extract text from a <dc:creator> tag
-     */
-    private String readCreator(XmlPullParser parser) throws IOException, XmlPullParserException {
-        parser.require(XmlPullParser.START_TAG, ns, "dc:creator");
-        String title = readText(parser);
-        parser.require(XmlPullParser.END_TAG, ns, "dc:creator");
-        return title;
-    }
-
-    /**
-     * Extract and format text from a <description> tag
-     */
-    private String readDescription(XmlPullParser parser) throws IOException, XmlPullParserException {
-        parser.require(XmlPullParser.START_TAG, ns, "description");
-        // Descriptions end in " [...]" (but with unicode ellipses) and then a 1x1px image so we
-        // remove those
-        String description = readText(parser).replaceAll("(?m) \\[\u2026\\]<img.*/>$", "");
-        parser.require(XmlPullParser.END_TAG, ns, "description");
-        return description + "...";
-    }
-
-    /**
-     * Extract and format text from a <content:encoded> tag
-     */
-    private String readContent(XmlPullParser parser) throws IOException, XmlPullParserException {
-        parser.require(XmlPullParser.START_TAG, ns, "content:encoded");
-        // Descriptions end in " [...]" (but with unicode ellipses) and then a 1x1px image so we
-        // remove those
-        String content = readText(parser).replaceAll("<img.*/>$", "");
-        parser.require(XmlPullParser.END_TAG, ns, "content:encoded");
-        return content;
     }
 
     /**
-     * Extract text from a <link> tag
-     */
-    private String readLink(XmlPullParser parser) throws IOException, XmlPullParserException {
-        parser.require(XmlPullParser.START_TAG, ns, "link");
-        String link = readText(parser);
-        parser.require(XmlPullParser.END_TAG, ns, "link");
-        return link;
-    }
-
-    /**
-     * Extract text from a tag
+     * Extract text from a tag, leaving the parser on its end tag
      */
     private String readText(XmlPullParser parser) throws IOException, XmlPullParserException {
         String result = "";
@@ -230,7 +258,14 @@ public class RssParser {
             result = parser.getText();
             parser.nextTag();
         }
-        // Unicode characters are escaped in the XML, so we unescape those
+        // Anything but text (e.g., a child element) is an error, rather than quietly cutting the
+        // post or page short
+        parser.require(XmlPullParser.END_TAG, ns, null);
+        // Unicode characters are escaped in the XML, so we unescape those. Most text has no
+        // escapes, in which case there's no need to copy it.
+        if (result.indexOf('&') < 0) {
+            return result;
+        }
         return StringEscapeUtils.unescapeXml(result);
     }
-}
\ No newline at end of file
+}
@@ -21,6 +21,7 @@ import org.openaccessbutton.openaccessbutton.MainActivity;
 import org.openaccessbutton.openaccessbutton.R;
 import org.openaccessbutton.openaccessbutton.about.AboutActivity;
 import org.openaccessbutton.openaccessbutton.api.API;
+import org.openaccessbutton.openaccessbutton.api.NetworkExecutor;
 import org.openaccessbutton.openaccessbutton.preferences.AppPreferencesActivity;
 
 import java.util.List;
@@ -101,7 +102,7 @@ public class ButtonSubmitActivity extends Activity {
         };
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
         if (sp.getBoolean("location", true)) {
-            (new Thread(r)).start();
+            NetworkExecutor.submit(r);
         }
 
     }
@@ -114,19 +115,23 @@ public class ButtonSubmitActivity extends Activity {
 
         needAccess.setOnClickListener(new View.OnClickListener() {
             @Override
-            public void onClick(View view) {
+            public void onClick(final View view) {
                 String story = ((EditText) findViewById(R.id.description)).getText().toString();
 
-                API.blockedRequest(new API.Callback() {
+                // Only stores the report, so there's no need to wait around for the network.
+                // Not cancelled when the activity goes, so the report is kept whatever happens.
+                view.setEnabled(false);
+                API.blockedRequest(new API.BlockedCallback() {
                     @Override
                     public void onComplete() {
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                Toast.makeText(context, getString(R.string.needAccessSent), Toast.LENGTH_LONG).show();
-                                finish();
-                            }
-                        });
+                        Toast.makeText(context, getString(R.string.needAccessSent), Toast.LENGTH_LONG).show();
+                        finish();
+                    }
+
+                    @Override
+                    public void onError(String message) {
+                        view.setEnabled(true);
+                        Toast.makeText(context, message, Toast.LENGTH_LONG).show();
                     }
                 }, context, mUrl, mLatitude, mLongitude, story, true);
             }
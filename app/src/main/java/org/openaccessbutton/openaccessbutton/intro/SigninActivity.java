@@ -29,38 +29,36 @@ public class SigninActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_signin);
 
-        Button loginButton = (Button) findViewById(R.id.signinButton);
+        final Button loginButton = (Button) findViewById(R.id.signinButton);
 
+        final Activity activity = this;
         final Context context = this;
         loginButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
                 final String username = ((EditText) findViewById(R.id.signInUsername)).getText().toString();
                 final String password = ((EditText) findViewById(R.id.signInPassword)).getText().toString();
+
+                // Show progress on the button itself rather than blocking the screen
+                loginButton.setEnabled(false);
+                loginButton.setText(R.string.signing_in);
+
                 API.signinRequest(new API.SigninCallback() {
                     @Override
                     public void onComplete(String username, String apikey) {
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                // Go to MenuActivity
-                                Intent k = new Intent(context, MenuActivity.class);
-                                startActivity(k);
-                                finish();
-                            }
-                        });
+                        // Go to MenuActivity
+                        Intent k = new Intent(context, MenuActivity.class);
+                        startActivity(k);
+                        finish();
                     }
 
                     @Override
-                    public void onError(final String message) {
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                Toast.makeText(context, message, Toast.LENGTH_LONG).show();
-                            }
-                        });
+                    public void onError(String message) {
+                        loginButton.setEnabled(true);
+                        loginButton.setText(R.string.sign_in);
+                        Toast.makeText(context, message, Toast.LENGTH_LONG).show();
                     }
-                }, context, username, password);
+                }, context, username, password).cancelOnDestroy(activity);
             }
         });
 
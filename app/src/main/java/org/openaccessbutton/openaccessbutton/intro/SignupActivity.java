@@ -63,6 +63,7 @@ public class SignupActivity extends Activity {
         // Bind signin button
         TextView signinButton = (TextView) findViewById(R.id.globalSigninButton);
         signinButton.setOnClickListener(new SigninButtonClickListener(this));
+        final Activity activity = this;
         final Context context = this;
 
         // Bind listener to signup button
@@ -94,35 +95,27 @@ public class SignupActivity extends Activity {
                     return;
                 }
 
+                // Show progress on the button itself rather than blocking the screen
                 submitButton.setEnabled(false);
+                submitButton.setText(R.string.signing_up);
 
                 // Create account using OAB API
-                            API.signupRequest(new API.SignupCallback() {
-                                @Override
-                                public void onComplete(String username, String apikey) {
-                                    // Go to IntroActivity
-                                    runOnUiThread(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            submitButton.setEnabled(true);
-                                            Intent k = new Intent(context, IntroActivity.class);
-                                            startActivity(k);
-                                            finish();
-                                        }
-                                    });
-                                }
-
-                                @Override
-                                public void onError(final String message) {
-                                    runOnUiThread(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            submitButton.setEnabled(true);
-                                            Toast.makeText(context, message, Toast.LENGTH_LONG).show();
-                                        }
-                                    });
-                                }
-                            }, context, email, profession, name, password);
+                API.signupRequest(new API.SignupCallback() {
+                    @Override
+                    public void onComplete(String username, String apikey) {
+                        // Go to IntroActivity
+                        Intent k = new Intent(context, IntroActivity.class);
+                        startActivity(k);
+                        finish();
+                    }
+
+                    @Override
+                    public void onError(String message) {
+                        submitButton.setEnabled(true);
+                        submitButton.setText(R.string.sign_up);
+                        Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+                    }
+                }, context, email, profession, name, password).cancelOnDestroy(activity);
 
                     }
 
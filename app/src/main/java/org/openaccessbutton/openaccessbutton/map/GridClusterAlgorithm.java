@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.map;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.Cluster;
+import com.google.maps.android.clustering.algo.Algorithm;
+import com.google.maps.android.clustering.algo.NonHierarchicalDistanceBasedAlgorithm;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Clustering algorithm which keeps a precomputed grid of clusters for each low zoom level, so
+ * that zooming around the whole world doesn't mean re-clustering every story each time. The
+ * grids are updated as items are added (which happens off the UI thread), so getting the clusters
+ * for a low zoom level only costs as much as the number of grid cells.
+ *
+ * Above MAX_GRID_ZOOM the usual distance based algorithm is used, since by then there are only a
+ * few stories on screen and grid cells would split up things that are right next to each other.
+ *
+ * Adding an item that's already been added does nothing, so stories can be added again without
+ * worrying about whether they've been seen (e.g., after joining a request part way through).
+ * Items can't be removed other than by clearing them all.
+ *
+ * Like the other algorithms this isn't thread safe; ClusterManager does the locking.
+ */
+class GridClusterAlgorithm implements Algorithm<Item> {
+    // Highest zoom level which uses the precomputed grids
+    static final int MAX_GRID_ZOOM = 6;
+    // Grid cells across a 256dp map tile, so cells are about the size of a cluster marker
+    private static final int CELLS_PER_TILE = 2;
+    // DefaultClusterRenderer draws clusters this size or smaller as their individual items, so
+    // cells only need to remember that many
+    private static final int MAX_LISTED_ITEMS = 4;
+
+    private final NonHierarchicalDistanceBasedAlgorithm<Item> mItems =
+            new NonHierarchicalDistanceBasedAlgorithm<Item>();
+    // For each zoom level, grid cell -> accumulated cell contents
+    private final List<Map<Long, Cell>> mGrids = new ArrayList<Map<Long, Cell>>();
+    // Indexes (in the store) of the items added
+    private final BitSet mAdded = new BitSet();
+
+    GridClusterAlgorithm() {
+        for (int zoom=0; zoom<=MAX_GRID_ZOOM; zoom++) {
+            mGrids.add(new HashMap<Long, Cell>());
+        }
+    }
+
+    @Override
+    public void addItem(Item item) {
+        if (mAdded.get(item.index())) return;
+        mAdded.set(item.index());
+        mItems.addItem(item);
+        addToGrids(item);
+    }
+
+    @Override
+    public void addItems(Collection<Item> items) {
+        List<Item> added = new ArrayList<Item>(items.size());
+        for (Item item : items) {
+            if (!mAdded.get(item.index())) {
+                mAdded.set(item.index());
+                added.add(item);
+            }
+        }
+        mItems.addItems(added);
+        for (Item item : added) {
+            addToGrids(item);
+        }
+    }
+
+    @Override
+    public void clearItems() {
+        mAdded.clear();
+        mItems.clearItems();
+        for (Map<Long, Cell> grid : mGrids) {
+            grid.clear();
+        }
+    }
+
+    /**
+     * Not supported: NonHierarchicalDistanceBasedAlgorithm can't remove items either, and we never
+     * need to. Throws before changing anything, so the algorithm is still usable afterwards.
+     */
+    @Override
+    public void removeItem(Item item) {
+        throw new UnsupportedOperationException("GridClusterAlgorithm.removeItem not implemented");
+    }
+
+    @Override
+    public Set<? extends Cluster<Item>> getClusters(double zoom) {
+        int discreteZoom = (int) zoom;
+        if (discreteZoom > MAX_GRID_ZOOM) {
+            return mItems.getClusters(zoom);
+        }
+
+        Map<Long, Cell> grid = mGrids.get(Math.max(discreteZoom, 0));
+        Set<Cluster<Item>> clusters = new HashSet<Cluster<Item>>(grid.size() * 2);
+        for (Cell cell : grid.values()) {
+            clusters.add(cell.toCluster());
+        }
+        return clusters;
+    }
+
+    @Override
+    public Collection<Item> getItems() {
+        return mItems.getItems();
+    }
+
+    private void addToGrids(Item item) {
+        LatLng position = item.getPosition();
+        // Project to 0..1 web mercator coordinates, the same as the map tiles
+        double x = position.longitude / 360 + 0.5;
+        double sinLat = Math.sin(Math.toRadians(Math.max(-85, Math.min(85, position.latitude))));
+        double y = 0.5 - Math.log((1 + sinLat) / (1 - sinLat)) / (4 * Math.PI);
+
+        for (int zoom=0; zoom<=MAX_GRID_ZOOM; zoom++) {
+            long cells = (long) CELLS_PER_TILE << zoom;
+            long cellX = Math.min((long) (x * cells), cells - 1);
+            long cellY = Math.min((long) (y * cells), cells - 1);
+            Long key = (cellX << 32) | cellY;
+
+            Map<Long, Cell> grid = mGrids.get(zoom);
+            Cell cell = grid.get(key);
+            if (cell == null) {
+                cell = new Cell();
+                grid.put(key, cell);
+            }
+            cell.add(item, position);
+        }
+    }
+
+    /**
+     * Running totals for the items in one grid cell
+     */
+    private static class Cell {
+        private int mSize;
+        private double mLatSum;
+        private double mLngSum;
+        private List<Item> mItems = new ArrayList<Item>(MAX_LISTED_ITEMS);
+
+        void add(Item item, LatLng position) {
+            mSize++;
+            mLatSum += position.latitude;
+            mLngSum += position.longitude;
+            if (mItems != null) {
+                if (mSize <= MAX_LISTED_ITEMS) {
+                    mItems.add(item);
+                } else {
+                    // Drawn as a cluster from now on, so the items aren't needed
+                    mItems = null;
+                }
+            }
+        }
+
+        /**
+         * Snapshot of the cell, positioned at the mean of its items. A new object each time so
+         * the renderer never sees a cluster change underneath it.
+         */
+        Cluster<Item> toCluster() {
+            LatLng position = new LatLng(mLatSum / mSize, mLngSum / mSize);
+            Collection<Item> items = (mItems == null)
+                    ? Collections.<Item>emptyList()
+                    : new ArrayList<Item>(mItems);
+            return new CellCluster(position, mSize, items);
+        }
+    }
+
+    private static class CellCluster implements Cluster<Item> {
+        private final LatLng mPosition;
+        private final int mSize;
+        private final Collection<Item> mItems;
+
+        CellCluster(LatLng position, int size, Collection<Item> items) {
+            mPosition = position;
+            mSize = size;
+            mItems = items;
+        }
+
+        @Override
+        public LatLng getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public Collection<Item> getItems() {
+            return mItems;
+        }
+
+        @Override
+        public int getSize() {
+            return mSize;
+        }
+    }
+}
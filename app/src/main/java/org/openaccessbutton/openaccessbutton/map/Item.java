@@ -6,61 +6,92 @@ import com.google.maps.android.clustering.ClusterItem;
 import org.openaccessbutton.openaccessbutton.R;
 
 /**
- * A marker on the map representing someone trying to access a paywalled article
+ * A marker on the map representing someone trying to access a paywalled article.
+ *
+ * The story itself lives in a StoryStore; this is just a lightweight handle to it, so text is
+ * only decoded when it's actually asked for.
  */
 public class Item implements ClusterItem {
-    public LatLng mPosition;
-    public String mStory;
-    public String mDoi;
-    public String mUserProfession;
-    public String mUrl;
-    public String mAccessed;
-    public String mUserName;
-    public String mDescription;
-    public int mIcon;
-
-    public Item(double lat, double lng, String story, String doi, String userProfession,
-                String url, String accesssed, String userName, String description) {
-        mPosition = new LatLng(lat, lng);
-        mStory = story;
-        mDoi = doi;
-        mUserProfession = userProfession;
-        mUrl = url;
-        mAccessed = accesssed;
-        mUserName = userName;
-        mDescription = description;
-
-        // Very pseudo random approach for choosing between the different possible icons,
-        // but for our purposes it works well enough
-        switch (mStory.length() % 5) {
-            case 0:
-                mIcon = R.drawable.mapblue;
-                break;
-
-            case 1:
-                mIcon = R.drawable.mapnavy;
-                break;
-
-            case 2:
-                mIcon = R.drawable.mapgray;
-                break;
-
-            case 3:
-                mIcon = R.drawable.maporange;
-                break;
-
-            default:
-                mIcon = R.drawable.mapsky;
-                break;
-        }
+    // Very pseudo random approach for choosing between the different possible icons (by story
+    // length), but for our purposes it works well enough
+    static final int[] ICONS = {
+            R.drawable.mapblue,
+            R.drawable.mapnavy,
+            R.drawable.mapgray,
+            R.drawable.maporange,
+            R.drawable.mapsky
+    };
+
+    private final StoryStore mStore;
+    private final int mIndex;
+
+    Item(StoryStore store, int index) {
+        mStore = store;
+        mIndex = index;
+    }
+
+    // Position in the store
+    int index() {
+        return mIndex;
     }
 
     @Override
     public LatLng getPosition() {
-        return mPosition;
+        return new LatLng(mStore.lat(mIndex), mStore.lng(mIndex));
+    }
+
+    // Elasticsearch document id
+    public String id() {
+        return mStore.id(mIndex);
+    }
+
+    public String story() {
+        return mStore.text(mIndex, StoryStore.FIELD_STORY);
+    }
+
+    public String doi() {
+        return mStore.text(mIndex, StoryStore.FIELD_DOI);
+    }
+
+    public String userProfession() {
+        return mStore.profession(mIndex);
+    }
+
+    public String url() {
+        return mStore.text(mIndex, StoryStore.FIELD_URL);
+    }
+
+    public String accessed() {
+        return mStore.text(mIndex, StoryStore.FIELD_ACCESSED);
+    }
+
+    public String userName() {
+        return mStore.text(mIndex, StoryStore.FIELD_USER_NAME);
+    }
+
+    public String description() {
+        return mStore.text(mIndex, StoryStore.FIELD_DESCRIPTION);
+    }
+
+    // Drawable resource for the marker
+    public int icon() {
+        return ICONS[mStore.icon(mIndex)];
     }
 
     public String name() {
-        return mUserName + " (" + mUserProfession + ")";
+        return userName() + " (" + userProfession() + ")";
+    }
+
+    // Several Items can refer to the same story, and the clustering code keys markers by Item
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Item)) return false;
+        Item other = (Item) o;
+        return other.mStore == mStore && other.mIndex == mIndex;
+    }
+
+    @Override
+    public int hashCode() {
+        return mIndex;
     }
-}
\ No newline at end of file
+}
@@ -15,9 +15,15 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.location.Location;
 import android.location.LocationManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.app.Fragment;
 import android.preference.PreferenceManager;
+import android.util.Log;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -29,9 +35,11 @@ import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.MapView;
 import com.google.android.gms.maps.MapsInitializer;
+import com.google.android.gms.maps.model.BitmapDescriptor;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.maps.android.clustering.Cluster;
@@ -43,11 +51,12 @@ import org.openaccessbutton.openaccessbutton.MainActivity;
 import org.openaccessbutton.openaccessbutton.OnShareIntentInterface;
 import org.openaccessbutton.openaccessbutton.R;
 import org.openaccessbutton.openaccessbutton.api.API;
+import org.openaccessbutton.openaccessbutton.api.ApiRequest;
+import org.openaccessbutton.openaccessbutton.api.NetworkExecutor;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
 
 /**
  * Shows paywalled journal requests, just like the map on openaccessbutton.org.
@@ -55,11 +64,64 @@ import java.util.Random;
 public class MapFragment extends Fragment {
     private MapView m;
     private ClusterManager<Item> mClusterManager;
+    private ItemRenderer mRenderer;
     private Item mClickedClusterItem;
-    private Map<String, Item> mMarkers;  // For unique markers
     private final String WEB_MAP_URL = "http://openaccessbutton.org";
     private OnShareIntentInterface mCallback;
 
+    // Stories are fetched for the visible region of the map as the camera moves
+    private static final long VIEWPORT_DEBOUNCE_MS = 400;
+    private static final double MAX_LONGITUDE = 179.999999;
+    private final Handler mHandler = new Handler();
+    private final Runnable mLoadVisibleStories = new Runnable() {
+        @Override
+        public void run() {
+            loadVisibleStories();
+        }
+    };
+    private final List<LatLngBounds> mLoadedRegions = new ArrayList<LatLngBounds>();
+    private ApiRequest mStoriesRequest;
+    private String mStoriesRequestKey;
+
+    // Every story on the map, kept on disk by StoryCache. Shared by every instance of the
+    // fragment, so recreating it (e.g., on rotation) doesn't mean loading them all again and can
+    // join the sync already running.
+    private static final StoryStore sStore = new StoryStore();
+    // Guards loading sStore from the disk cache, which only happens once
+    private static final Object sLoadLock = new Object();
+    private static boolean sStoreLoaded;
+    // Whether the disk cache held every story when it was loaded
+    private static boolean sCacheComplete;
+    // Number of stories when they were last loaded/saved
+    private static volatile int sSavedCount;
+    // Whether we've downloaded every story, rather than just the regions looked at
+    private static boolean sHaveAllStories;
+    // The since argument of the last sync started, so a new instance asks for the same thing
+    private static String sSyncSince;
+    private ApiRequest mSyncRequest;
+    // Set in onDestroy(), so background work which finishes afterwards leaves the map alone
+    private volatile boolean mDestroyed;
+
+    // Stories are added to the clusterer in slices of this many
+    private static final int INSERT_CHUNK_SIZE = 500;
+    private final Runnable mCluster = new Runnable() {
+        @Override
+        public void run() {
+            // May have been posted by a background thread just after onDestroy() cleared these
+            if (mDestroyed) return;
+            beginTraceSection("MapFragment.cluster");
+            mClusterManager.cluster();
+            endTraceSection();
+            if (mInteractiveAt == 0 && sStore.size() > 0) {
+                mInteractiveAt = SystemClock.elapsedRealtime();
+                Log.i("oab", "Map has stories " + (mInteractiveAt - mCreatedAt) + "ms after opening");
+            }
+        }
+    };
+    // For measuring how long it takes before there's something to look at
+    private long mCreatedAt;
+    private long mInteractiveAt;
+
     public MapFragment() {
         // Required empty public constructor
     }
@@ -77,6 +139,7 @@ public class MapFragment extends Fragment {
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
+        mCreatedAt = SystemClock.elapsedRealtime();
         View v = inflater.inflate(R.layout.fragment_map, container, false);
         m = (MapView) v.findViewById(R.id.map_view);
         m.onCreate(savedInstanceState);
@@ -90,19 +153,34 @@ public class MapFragment extends Fragment {
     }
 
     class MarkerInfoWindowAdapter implements GoogleMap.InfoWindowAdapter {
+        // The map draws the returned view into a bitmap, so one view can be reused for every
+        // marker rather than inflated each time
+        private View mView;
+        private TextView mName;
+        private TextView mStory;
+        private TextView mDescription;
+        // The item whose text is currently in mView
+        private Item mShownItem;
+
         @Override
         public View getInfoContents(Marker marker) {
-            LayoutInflater li = getActivity().getLayoutInflater();
-            View view = li.inflate(R.layout.map_info_window, null);
+            if (mView == null) {
+                LayoutInflater li = getActivity().getLayoutInflater();
+                mView = li.inflate(R.layout.map_info_window, null);
+                mName = (TextView) mView.findViewById(R.id.map_item_name);
+                mStory = (TextView) mView.findViewById(R.id.map_item_story);
+                mDescription = (TextView) mView.findViewById(R.id.map_item_description);
+            }
 
-            TextView name = (TextView) view.findViewById(R.id.map_item_name);
-            TextView story = (TextView) view.findViewById(R.id.map_item_story);
-            TextView description = (TextView) view.findViewById(R.id.map_item_description);
-            name.setText(mClickedClusterItem.name());
-            story.setText(mClickedClusterItem.mStory);
-            description.setText(mClickedClusterItem.mDescription);
+            // Text is only decoded/formatted when a different story is opened
+            if (!mClickedClusterItem.equals(mShownItem)) {
+                mName.setText(mClickedClusterItem.name());
+                mStory.setText(mClickedClusterItem.story());
+                mDescription.setText(mClickedClusterItem.description());
+                mShownItem = mClickedClusterItem;
+            }
 
-            return view;
+            return mView;
         }
 
         @Override
@@ -113,7 +191,6 @@ public class MapFragment extends Fragment {
 
     public void setupMap() {
         MapsInitializer.initialize(getActivity());
-        mMarkers = new HashMap<String, Item>();
 
         // Auto center map
         Runnable r = new Runnable() {
@@ -146,13 +223,25 @@ public class MapFragment extends Fragment {
         };
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(getActivity());
         if (sp.getBoolean("location", true)) {
-            (new Thread(r)).start();
+            NetworkExecutor.submit(r);
         }
 
         // Setup clustering
         mClusterManager = new ClusterManager<Item>(getActivity(), m.getMap());
-        mClusterManager.setRenderer(new ItemRenderer());
-        m.getMap().setOnCameraChangeListener(mClusterManager);
+        mRenderer = new ItemRenderer();
+        mClusterManager.setRenderer(mRenderer);
+        // Precomputed grid clusters when zoomed out, per item clustering when zoomed in
+        mClusterManager.setAlgorithm(new GridClusterAlgorithm());
+        m.getMap().setOnCameraChangeListener(new GoogleMap.OnCameraChangeListener() {
+            @Override
+            public void onCameraChange(CameraPosition position) {
+                mClusterManager.onCameraChange(position);
+
+                // Wait for the camera to settle before loading stories for the new viewport
+                mHandler.removeCallbacks(mLoadVisibleStories);
+                mHandler.postDelayed(mLoadVisibleStories, VIEWPORT_DEBOUNCE_MS);
+            }
+        });
         m.getMap().setOnMarkerClickListener(mClusterManager);
 
         // Setup info windows
@@ -181,29 +270,208 @@ public class MapFragment extends Fragment {
             }
         });
 
-        API.storyListRequest(new API.StoryListCallback() {
+        loadCachedStories();
+    }
+
+    /**
+     * Fetch the stories in the part of the map currently on screen, unless we already have them
+     */
+    private void loadVisibleStories() {
+        if (sHaveAllStories) {
+            return;
+        }
+
+        GoogleMap map = m.getMap();
+        int zoomBucket = zoomBucket(map.getCameraPosition().zoom);
+        final LatLngBounds region = snapToGrid(map.getProjection().getVisibleRegion().latLngBounds,
+                zoomBucket);
+
+        for (LatLngBounds loaded : mLoadedRegions) {
+            if (loaded.contains(region.southwest) && loaded.contains(region.northeast)) {
+                return;
+            }
+        }
+        final String key = zoomBucket + ":" + region.toString();
+        if (key.equals(mStoriesRequestKey)) {
+            // Already being fetched
+            return;
+        }
+
+        // The camera's moved on, so whatever we were loading is no longer wanted
+        if (mStoriesRequest != null) {
+            mStoriesRequest.cancel();
+        }
+        mStoriesRequestKey = key;
+        mStoriesRequest = API.storyBoundsRequest(new API.StoryListCallback() {
             @Override
-            public void onComplete(final Item[] stories) {
-                getActivity().runOnUiThread(new Runnable() {
+            public void onStories(Item[] stories) {
+                addStories(stories);
+            }
+
+            @Override
+            public void onComplete() {
+                mLoadedRegions.add(region);
+                if (key.equals(mStoriesRequestKey)) {
+                    mStoriesRequestKey = null;
+                }
+            }
+
+            @Override
+            public void onError(String message) {
+                if (key.equals(mStoriesRequestKey)) {
+                    mStoriesRequestKey = null;
+                }
+                Toast.makeText(getActivity(), message, Toast.LENGTH_LONG).show();
+            }
+        }, getActivity(), sStore, region);
+    }
+
+    /**
+     * Draw the stories saved last time (or already loaded by an earlier instance of this
+     * fragment) straight away, then fetch any new ones in the background
+     */
+    private void loadCachedStories() {
+        final Context context = getActivity().getApplicationContext();
+        NetworkExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (sLoadLock) {
+                    if (!sStoreLoaded) {
+                        StoryCache.Snapshot cached = StoryCache.load(context, sStore);
+                        sSavedCount = cached.stories.size();
+                        sCacheComplete = cached.complete;
+                        sStoreLoaded = true;
+                    }
+                }
+                addStories(sStore.items());
+                Activity activity = getActivity();
+                if (activity == null) return;
+                activity.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        for (int i=0; i<stories.length; i++) {
-                            addItem(stories[i]);
+                        if (sHaveAllStories) {
+                            // Only need the ones added since
+                            syncStories(sStore.lastAccessed());
+                        } else if (sSyncSince != null || sCacheComplete) {
+                            // Same as the sync already started, which this joins if it's still
+                            // running. If the cache had every story then we only need the ones
+                            // added since.
+                            syncStories(sSyncSince != null ? sSyncSince : sStore.lastAccessed());
+                        } else {
+                            syncStories(null);
                         }
                     }
                 });
             }
+        });
+    }
 
+    /**
+     * Fetch every story (or every story accessed from since on) in the background. Until this is
+     * done we load the stories for whatever's on screen.
+     */
+    private void syncStories(String since) {
+        sSyncSince = since;
+        mSyncRequest = API.storyListRequest(new API.StoryListCallback() {
             @Override
-            public void onError(final String message) {
-                getActivity().runOnUiThread(new Runnable() {
+            public void onStories(Item[] stories) {
+                addStories(stories);
+            }
+
+            @Override
+            public void onComplete() {
+                // No need to fetch regions any more
+                sHaveAllStories = true;
+                if (mStoriesRequest != null) {
+                    mStoriesRequest.cancel();
+                }
+                saveStories();
+                // If we joined the sync part way through, pick up the stories from the pages
+                // before that (the clusterer ignores the ones it's already got)
+                NetworkExecutor.submit(new Runnable() {
                     @Override
                     public void run() {
-                        Toast.makeText(getActivity(), message, Toast.LENGTH_LONG).show();
+                        addStories(sStore.items());
                     }
                 });
             }
-        }, getActivity());
+
+            @Override
+            public void onError(String message) {
+                // Not fatal; we've still got the cached and on screen stories
+                Log.e("oab", "Couldn't sync stories: " + message);
+            }
+        }, getActivity(), sStore, since);
+    }
+
+    /**
+     * Save the stories we've got in the background
+     */
+    private void saveStories() {
+        final Context context = getActivity().getApplicationContext();
+        final boolean complete = sHaveAllStories;
+        sSavedCount = sStore.size();
+        NetworkExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                StoryCache.save(context, sStore, complete);
+            }
+        });
+    }
+
+    /**
+     * Add stories to the map. Called on a background thread with stories that weren't already in
+     * sStore (so overlapping regions don't give duplicates); the main thread only has to start
+     * re-clustering once they're in.
+     */
+    private void addStories(Item[] stories) {
+        if (stories.length == 0 || mDestroyed) return;
+        beginTraceSection("MapFragment.addStories");
+        List<Item> items = Arrays.asList(stories);
+        // Insert in slices so a clustering pass running at the same time isn't locked out for long
+        for (int start=0; start<items.size(); start+=INSERT_CHUNK_SIZE) {
+            mClusterManager.addItems(items.subList(start,
+                    Math.min(start + INSERT_CHUNK_SIZE, items.size())));
+        }
+        endTraceSection();
+
+        // Several pages can arrive in quick succession, so only cluster once for all of them
+        if (mDestroyed) return;
+        mHandler.removeCallbacks(mCluster);
+        mHandler.post(mCluster);
+    }
+
+    private void beginTraceSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        }
+    }
+
+    private void endTraceSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Groups zoom levels in pairs, so regions are only refetched when zooming in by a decent amount
+     */
+    private static int zoomBucket(float zoom) {
+        return ((int) zoom / 2) * 2;
+    }
+
+    /**
+     * Expand bounds outwards to the edges of a grid whose cells shrink as the zoom bucket
+     * increases, so small pans give the same region (which we'll already have loaded)
+     */
+    private static LatLngBounds snapToGrid(LatLngBounds bounds, int zoomBucket) {
+        double cell = 360.0 / (1 << zoomBucket);
+        double south = Math.max(-90, Math.floor(bounds.southwest.latitude / cell) * cell);
+        double north = Math.min(90, Math.ceil(bounds.northeast.latitude / cell) * cell);
+        double west = Math.max(-180, Math.floor(bounds.southwest.longitude / cell) * cell);
+        // LatLng wraps a longitude of 180 round to -180, so stop just short of it
+        double east = Math.min(MAX_LONGITUDE, Math.ceil(bounds.northeast.longitude / cell) * cell);
+        return new LatLngBounds(new LatLng(south, west), new LatLng(north, east));
     }
 
     @Override
@@ -217,11 +485,24 @@ public class MapFragment extends Fragment {
     public void onPause() {
         super.onPause();
         m.onPause();
+        if (sStore.size() != sSavedCount) {
+            saveStories();
+        }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mDestroyed = true;
+        // Stop fetching further pages of stories
+        mHandler.removeCallbacks(mLoadVisibleStories);
+        mHandler.removeCallbacks(mCluster);
+        if (mStoriesRequest != null) {
+            mStoriesRequest.cancel();
+        }
+        if (mSyncRequest != null) {
+            mSyncRequest.cancel();
+        }
         m.onDestroy();
     }
 
@@ -229,6 +510,10 @@ public class MapFragment extends Fragment {
     public void onLowMemory() {
         super.onLowMemory();
         m.onLowMemory();
+        sStore.trimToSize();
+        if (mRenderer != null) {
+            mRenderer.clearIcons();
+        }
     }
 
     // Implement a custom Cluster renderer so we can use our own icons for the marker pins
@@ -237,6 +522,10 @@ public class MapFragment extends Fragment {
         private final IconGenerator mIconGenerator = new IconGenerator(getActivity().getApplicationContext());
         private final ImageView mImageView;
         private final int mDimension;
+        // There's only a handful of different marker icons, so render each once and reuse it.
+        // Keyed by drawable resource; the renderer is recreated with the fragment, so a density
+        // change gives a fresh cache.
+        private final SparseArray<BitmapDescriptor> mIcons = new SparseArray<BitmapDescriptor>();
 
         public ItemRenderer() {
             super(getActivity().getApplicationContext(), m.getMap(), mClusterManager);
@@ -253,39 +542,29 @@ public class MapFragment extends Fragment {
         protected void onBeforeClusterItemRendered(Item item, MarkerOptions markerOptions) {
             // Draw a single person.
             // Set the info window to show their name.
-            mImageView.setImageResource(item.mIcon);
-            Bitmap icon = mIconGenerator.makeIcon();
-            markerOptions.icon(BitmapDescriptorFactory.fromBitmap(icon)).title(item.toString());
+            markerOptions.icon(getIcon(item.icon())).title(item.toString());
         }
-    }
 
-
-    private void addItem(Item item) {
-        // Don't add unique markers
-        String key = item.mPosition.latitude + "," + item.mPosition.longitude;
-
-        // Move the marker by up to 10m if it's got exactly the same lat/lng as another one
-        if (mMarkers.containsKey(key)) {
-            // DEGREE APPROXIMATIONS
-            // 1 latitude degree approx = 111,111m
-            // 1 longitude degree approx = 111,111*cos(latitude)
-            double latitudeMaxOffset = 10.0/111111.0;
-            double longitudeMaxOffset = 10.0/(111111.0*Math.cos(Math.toRadians((item.mPosition.latitude))));
-
-            Random generator = new Random();
-            double latitudeOffset = latitudeMaxOffset * generator.nextDouble();
-            double longitudeOffset = longitudeMaxOffset * generator.nextDouble();
-
-            LatLng newPosition = new LatLng(item.mPosition.latitude + latitudeOffset, item.mPosition.longitude + longitudeOffset);
-            item.mPosition = newPosition;
-            addItem(item);
-        } else {
-            mMarkers.put(key, item);
-            mClusterManager.addItem(item);
+        private BitmapDescriptor getIcon(int resource) {
+            BitmapDescriptor icon = mIcons.get(resource);
+            if (icon == null) {
+                mImageView.setImageResource(resource);
+                Bitmap bitmap = mIconGenerator.makeIcon();
+                icon = BitmapDescriptorFactory.fromBitmap(bitmap);
+                mIcons.put(resource, icon);
+            }
+            return icon;
         }
 
+        /**
+         * Drop the rendered icons; they'll be recreated as needed
+         */
+        public void clearIcons() {
+            mIcons.clear();
+        }
     }
 
+
     public Intent onShareButtonPressed(Resources resources) {
         Intent shareIntent = new Intent();
         shareIntent.setAction(Intent.ACTION_SEND);
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.map;
+
+import java.util.Arrays;
+
+/**
+ * Spreads out stories which share the same location (they're only stored to 1dp, so lots do) so
+ * that each gets its own marker.
+ *
+ * Locations are bucketed into a fine grid, and a hash table counts how many points have already
+ * landed in each cell. The nth point in a cell is placed n steps along a golden angle spiral
+ * around it, which packs points evenly without any randomness, so the same stories always end
+ * up in the same places.
+ */
+class PointSpreader {
+    // Points closer together than this (in degrees) are treated as being in the same place
+    private static final double CELL_SIZE = 0.00001;
+    // Distance between neighbouring points on the spiral
+    private static final double SPACING_METRES = 100;
+    // Approximately, for latitude everywhere and longitude at the equator
+    private static final double METRES_PER_DEGREE = 111111;
+    private static final double GOLDEN_ANGLE = Math.PI * (3 - Math.sqrt(5));
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    // Open addressing hash table from cell to number of points in it
+    private long[] mKeys;
+    private int[] mCounts;
+    private int mSize;
+
+    PointSpreader() {
+        clear();
+    }
+
+    /**
+     * Forget every point seen so far
+     */
+    void clear() {
+        mKeys = new long[64];
+        mCounts = new int[64];
+        mSize = 0;
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    /**
+     * Record a point.
+     * @return How many points were already in the same cell (i.e., 0 for the first one)
+     */
+    int add(double lat, double lng) {
+        long key = (Math.round(lat / CELL_SIZE) << 32) ^ (Math.round(lng / CELL_SIZE) & 0xffffffffL);
+        int slot = find(mKeys, key);
+        if (mKeys[slot] == key) {
+            return mCounts[slot]++;
+        }
+
+        mKeys[slot] = key;
+        mCounts[slot] = 1;
+        mSize++;
+        // Keep the table at most half full
+        if (mSize * 2 > mKeys.length) {
+            grow();
+        }
+        return 0;
+    }
+
+    /**
+     * Latitude offset (degrees) for the nth point in a cell
+     */
+    static double offsetLat(int n) {
+        if (n == 0) return 0;
+        return SPACING_METRES * Math.sqrt(n) * Math.cos(n * GOLDEN_ANGLE) / METRES_PER_DEGREE;
+    }
+
+    /**
+     * Longitude offset (degrees) for the nth point in a cell at latitude lat
+     */
+    static double offsetLng(int n, double lat) {
+        if (n == 0) return 0;
+        double metresPerDegree = METRES_PER_DEGREE * Math.max(Math.cos(Math.toRadians(lat)), 0.01);
+        return SPACING_METRES * Math.sqrt(n) * Math.sin(n * GOLDEN_ANGLE) / metresPerDegree;
+    }
+
+    /**
+     * Slot holding key, or the empty slot where it should go
+     */
+    private static int find(long[] keys, long key) {
+        int mask = keys.length - 1;
+        // Cells are multiples of 10000 (locations are to 1dp), so the low bits of the key are
+        // always the same. Mix every bit in and then take the top bits of the result.
+        int slot = (int) (mix(key) >>> (64 - Integer.numberOfTrailingZeros(keys.length)));
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * MurmurHash3's 64 bit finalizer: every bit of the result depends on every bit of h
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private void grow() {
+        long[] oldKeys = mKeys;
+        int[] oldCounts = mCounts;
+        mKeys = new long[oldKeys.length * 2];
+        mCounts = new int[oldKeys.length * 2];
+        Arrays.fill(mKeys, EMPTY);
+        for (int i=0; i<oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = find(mKeys, oldKeys[i]);
+                mKeys[slot] = oldKeys[i];
+                mCounts[slot] = oldCounts[i];
+            }
+        }
+    }
+}
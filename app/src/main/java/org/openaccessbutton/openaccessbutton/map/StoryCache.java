@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.map;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a copy of the map stories in a compact binary file (the StoryStore columns as they are),
+ * so the map can be drawn as soon as it's opened rather than after every story has been
+ * downloaded again.
+ *
+ * Both methods do disk IO so shouldn't be called on the UI thread.
+ */
+public class StoryCache {
+    private static final String FILENAME = "stories.bin";
+    // Bump this whenever the file format changes; older files are then ignored
+    private static final int VERSION = 3;
+
+    // Saves run on a pool, so this stops two of them writing the temporary file at once
+    private static final Object sSaveLock = new Object();
+
+    /**
+     * Stories read back from the cache
+     */
+    public static class Snapshot {
+        // The stories added to the store
+        public final List<Item> stories;
+        // Whether this holds every story (rather than just the regions the user looked at)
+        public final boolean complete;
+
+        Snapshot(List<Item> stories, boolean complete) {
+            this.stories = stories;
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * Add the saved stories to store
+     * @return The stories, or an empty incomplete Snapshot if there aren't any (or they can't
+     * be read)
+     */
+    public static Snapshot load(Context context, StoryStore store) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(new File(context.getFilesDir(), FILENAME))));
+            if (in.readInt() != VERSION) {
+                return new Snapshot(new ArrayList<Item>(), false);
+            }
+            boolean complete = in.readBoolean();
+            return new Snapshot(store.readFrom(in), complete);
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet
+            return new Snapshot(new ArrayList<Item>(), false);
+        } catch (IOException e) {
+            Log.e("oab", "Couldn't read cached stories", e);
+            return new Snapshot(new ArrayList<Item>(), false);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Replace the saved stories with those in store
+     * @param complete Whether store contains every story, see Snapshot.complete
+     */
+    public static void save(Context context, StoryStore store, boolean complete) {
+        synchronized (sSaveLock) {
+            // Write to a temporary file and then swap it in, so a crash halfway through doesn't
+            // leave us with a truncated cache
+            File file = new File(context.getFilesDir(), FILENAME);
+            File tmp = new File(context.getFilesDir(), FILENAME + ".tmp");
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                out.writeInt(VERSION);
+                out.writeBoolean(complete);
+                store.writeTo(out);
+                out.close();
+                out = null;
+
+                if (!tmp.renameTo(file)) {
+                    Log.e("oab", "Couldn't replace cached stories");
+                }
+            } catch (IOException e) {
+                Log.e("oab", "Couldn't save stories", e);
+            } finally {
+                closeQuietly(out);
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // Nothing we can do
+        }
+    }
+}
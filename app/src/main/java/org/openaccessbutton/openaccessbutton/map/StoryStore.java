@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2014 Open Access Button
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ */
+
+package org.openaccessbutton.openaccessbutton.map;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds every story shown on the map in parallel primitive arrays rather than one object (with a
+ * LatLng and a handful of Strings) per story. Items are just an index into here.
+ *
+ * - Coordinates are stored in double arrays, as they came from the server, plus float offsets
+ *   from PointSpreader so that stories in the same place don't sit on top of each other
+ * - Professions are interned, since there's only a handful of them
+ * - The remaining text is kept as UTF-8 in one big byte array and only turned into Strings
+ *   when an info window actually needs it
+ *
+ * Stories are added by the network/cache threads and read by the clustering threads, so all
+ * access is synchronized.
+ */
+public class StoryStore {
+    // Text fields stored in mText, in this order
+    static final int FIELD_STORY = 0;
+    static final int FIELD_DOI = 1;
+    static final int FIELD_URL = 2;
+    static final int FIELD_ACCESSED = 3;
+    static final int FIELD_USER_NAME = 4;
+    static final int FIELD_DESCRIPTION = 5;
+    static final int FIELD_COUNT = 6;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int mSize;
+    private String[] mIds = new String[INITIAL_CAPACITY];
+    private double[] mLat = new double[INITIAL_CAPACITY];
+    private double[] mLng = new double[INITIAL_CAPACITY];
+    private float[] mSpreadLat = new float[INITIAL_CAPACITY];
+    private float[] mSpreadLng = new float[INITIAL_CAPACITY];
+    private short[] mProfession = new short[INITIAL_CAPACITY];
+    private byte[] mIcon = new byte[INITIAL_CAPACITY];
+    // Start of each text field in mText; field f of story i ends where the next field starts
+    private int[] mTextStart = new int[INITIAL_CAPACITY * FIELD_COUNT + 1];
+    private byte[] mText = new byte[INITIAL_CAPACITY * 64];
+    private int mTextLength;
+
+    private final List<String> mProfessions = new ArrayList<String>();
+    private final Map<String, Short> mProfessionIndex = new HashMap<String, Short>();
+    private final Map<String, Integer> mIndex = new HashMap<String, Integer>();
+    private String mLastAccessed;
+    private final PointSpreader mSpreader = new PointSpreader();
+
+    /**
+     * Add a story.
+     * @return An Item for the story, or null if a story with the same id has already been added
+     */
+    public synchronized Item add(String id, double lat, double lng, String story, String doi,
+                                 String userProfession, String url, String accessed,
+                                 String userName, String description) {
+        if (mIndex.containsKey(id)) {
+            return null;
+        }
+        ensureCapacity(mSize + 1);
+
+        int i = mSize;
+        mIds[i] = id;
+        mLat[i] = lat;
+        mLng[i] = lng;
+        spread(i);
+        mProfession[i] = intern(userProfession);
+        mIcon[i] = (byte) (story.length() % Item.ICONS.length);
+
+        String[] fields = new String[FIELD_COUNT];
+        fields[FIELD_STORY] = story;
+        fields[FIELD_DOI] = doi;
+        fields[FIELD_URL] = url;
+        fields[FIELD_ACCESSED] = accessed;
+        fields[FIELD_USER_NAME] = userName;
+        fields[FIELD_DESCRIPTION] = description;
+        for (int f=0; f<FIELD_COUNT; f++) {
+            mTextStart[i * FIELD_COUNT + f] = mTextLength;
+            appendText(fields[f]);
+        }
+        mTextStart[(i + 1) * FIELD_COUNT] = mTextLength;
+
+        mIndex.put(id, i);
+        if (mLastAccessed == null || accessed.compareTo(mLastAccessed) > 0) {
+            mLastAccessed = accessed;
+        }
+        mSize++;
+        return new Item(this, i);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Whether a story with this id has been added
+     */
+    public synchronized boolean contains(String id) {
+        return mIndex.containsKey(id);
+    }
+
+    /**
+     * Latest accessed timestamp of any story, or null if there aren't any
+     */
+    public synchronized String lastAccessed() {
+        return mLastAccessed;
+    }
+
+    /**
+     * Items for every story, in the order they were added
+     */
+    public synchronized Item[] items() {
+        Item[] items = new Item[mSize];
+        for (int i=0; i<mSize; i++) {
+            items[i] = new Item(this, i);
+        }
+        return items;
+    }
+
+    /**
+     * Give back any spare capacity, e.g., when the system is low on memory
+     */
+    public synchronized void trimToSize() {
+        resize(mSize, mTextLength);
+    }
+
+    synchronized String id(int i) {
+        return mIds[i];
+    }
+
+    synchronized double lat(int i) {
+        return mLat[i] + mSpreadLat[i];
+    }
+
+    synchronized double lng(int i) {
+        return mLng[i] + mSpreadLng[i];
+    }
+
+    synchronized String profession(int i) {
+        return mProfessions.get(mProfession[i]);
+    }
+
+    synchronized int icon(int i) {
+        return mIcon[i];
+    }
+
+    synchronized String text(int i, int field) {
+        int start = mTextStart[i * FIELD_COUNT + field];
+        int end = mTextStart[i * FIELD_COUNT + field + 1];
+        try {
+            return new String(mText, start, end - start, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Every JVM has UTF-8
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Write every story to out, in the format read by readFrom()
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        // Take a snapshot and write it outside the lock, so the UI thread (drawing markers,
+        // showing info windows) isn't held up by the disk. Stories are only ever appended, and
+        // growing an array replaces it, so the first size entries of these arrays never change
+        // and don't need copying.
+        int size;
+        String lastAccessed;
+        List<String> professions;
+        String[] ids;
+        double[] lat;
+        double[] lng;
+        short[] profession;
+        byte[] icon;
+        int[] textStart;
+        byte[] text;
+        int textLength;
+        synchronized (this) {
+            size = mSize;
+            lastAccessed = mLastAccessed;
+            professions = new ArrayList<String>(mProfessions);
+            ids = mIds;
+            lat = mLat;
+            lng = mLng;
+            profession = mProfession;
+            icon = mIcon;
+            textStart = mTextStart;
+            text = mText;
+            textLength = mTextLength;
+        }
+
+        out.writeInt(size);
+        out.writeUTF(lastAccessed == null ? "" : lastAccessed);
+        out.writeInt(professions.size());
+        for (String p : professions) {
+            out.writeUTF(p);
+        }
+        for (int i=0; i<size; i++) {
+            out.writeUTF(ids[i]);
+            out.writeDouble(lat[i]);
+            out.writeDouble(lng[i]);
+            out.writeShort(profession[i]);
+            out.writeByte(icon[i]);
+        }
+        for (int i=0; i<=size * FIELD_COUNT; i++) {
+            out.writeInt(textStart[i]);
+        }
+        out.writeInt(textLength);
+        out.write(text, 0, textLength);
+    }
+
+    /**
+     * Add every story written by writeTo()
+     * @return Items for the stories that weren't already here
+     */
+    List<Item> readFrom(DataInputStream in) throws IOException {
+        // Decode into local arrays without the lock, so the UI thread isn't held up by the disk
+        int count = in.readInt();
+        String lastAccessed = in.readUTF();
+        String[] professions = new String[in.readInt()];
+        for (int p=0; p<professions.length; p++) {
+            professions[p] = in.readUTF();
+        }
+        String[] ids = new String[count];
+        double[] lat = new double[count];
+        double[] lng = new double[count];
+        short[] profession = new short[count];
+        byte[] icon = new byte[count];
+        for (int i=0; i<count; i++) {
+            ids[i] = in.readUTF();
+            lat[i] = in.readDouble();
+            lng[i] = in.readDouble();
+            profession[i] = in.readShort();
+            icon[i] = in.readByte();
+        }
+        int[] textStart = new int[count * FIELD_COUNT + 1];
+        for (int i=0; i<textStart.length; i++) {
+            textStart[i] = in.readInt();
+        }
+        byte[] text = new byte[in.readInt()];
+        in.readFully(text);
+
+        List<Item> added = new ArrayList<Item>(count);
+        synchronized (this) {
+            if (mSize == 0) {
+                // Usual case when the map's first opened: just take the columns as they are
+                swapIn(count, lastAccessed, professions, ids, lat, lng, profession, icon,
+                        textStart, text, added);
+                return added;
+            }
+        }
+
+        // Otherwise go through add() so duplicates and interning are handled
+        String[] fields = new String[FIELD_COUNT];
+        for (int i=0; i<count; i++) {
+            for (int f=0; f<FIELD_COUNT; f++) {
+                int start = textStart[i * FIELD_COUNT + f];
+                fields[f] = new String(text, start, textStart[i * FIELD_COUNT + f + 1] - start, "UTF-8");
+            }
+            Item item = add(ids[i], lat[i], lng[i], fields[FIELD_STORY], fields[FIELD_DOI],
+                    professions[profession[i]], fields[FIELD_URL], fields[FIELD_ACCESSED],
+                    fields[FIELD_USER_NAME], fields[FIELD_DESCRIPTION]);
+            if (item != null) {
+                added.add(item);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Take the columns read by readFrom() as they are, when the store is empty
+     * @param added Items for the stories are added to this
+     */
+    private void swapIn(int count, String lastAccessed, String[] professions, String[] ids,
+                        double[] lat, double[] lng, short[] profession, byte[] icon,
+                        int[] textStart, byte[] text, List<Item> added) {
+        mSize = count;
+        mIds = ids;
+        mLat = lat;
+        mLng = lng;
+        mSpreadLat = new float[count];
+        mSpreadLng = new float[count];
+        mProfession = profession;
+        mIcon = icon;
+        mTextStart = textStart;
+        mText = text;
+        mTextLength = text.length;
+        for (int p=0; p<professions.length; p++) {
+            mProfessions.add(professions[p]);
+            mProfessionIndex.put(professions[p], (short) p);
+        }
+        for (int i=0; i<count; i++) {
+            mIndex.put(ids[i], i);
+            // Same order as when they were first added, so they get the same positions
+            spread(i);
+            added.add(new Item(this, i));
+        }
+        mLastAccessed = (count == 0) ? null : lastAccessed;
+    }
+
+    /**
+     * Work out the offset for story i from its raw position
+     */
+    private void spread(int i) {
+        int n = mSpreader.add(mLat[i], mLng[i]);
+        mSpreadLat[i] = (float) PointSpreader.offsetLat(n);
+        mSpreadLng[i] = (float) PointSpreader.offsetLng(n, mLat[i]);
+    }
+
+    private short intern(String profession) {
+        Short index = mProfessionIndex.get(profession);
+        if (index == null) {
+            index = (short) mProfessions.size();
+            mProfessions.add(profession);
+            mProfessionIndex.put(profession, index);
+        }
+        return index;
+    }
+
+    private void appendText(String s) {
+        byte[] bytes;
+        try {
+            bytes = s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        if (mTextLength + bytes.length > mText.length) {
+            mText = Arrays.copyOf(mText, Math.max(mText.length * 2, mTextLength + bytes.length));
+        }
+        System.arraycopy(bytes, 0, mText, mTextLength, bytes.length);
+        mTextLength += bytes.length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mLat.length) {
+            resize(Math.max(capacity, mLat.length * 2), mText.length);
+        }
+    }
+
+    private void resize(int capacity, int textCapacity) {
+        mIds = Arrays.copyOf(mIds, capacity);
+        mLat = Arrays.copyOf(mLat, capacity);
+        mLng = Arrays.copyOf(mLng, capacity);
+        mSpreadLat = Arrays.copyOf(mSpreadLat, capacity);
+        mSpreadLng = Arrays.copyOf(mSpreadLng, capacity);
+        mProfession = Arrays.copyOf(mProfession, capacity);
+        mIcon = Arrays.copyOf(mIcon, capacity);
+        mTextStart = Arrays.copyOf(mTextStart, capacity * FIELD_COUNT + 1);
+        mText = Arrays.copyOf(mText, textCapacity);
+    }
+}